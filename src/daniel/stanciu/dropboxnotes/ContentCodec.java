@@ -0,0 +1,141 @@
+package daniel.stanciu.dropboxnotes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+/**
+ * Compression of the content of large notes. A compressed content is stored
+ * as a BLOB whose first byte names the codec, so plain contents stay TEXT and
+ * other codecs can be added without touching the rows already written.
+ *
+ * Notes of a few kilobytes compress poorly and are read often, so only
+ * contents longer than a threshold are compressed: mostly logs and pasted
+ * text, which shrink several times.
+ */
+final class ContentCodec {
+
+	/**
+	 * The codec marker of UTF-8 text compressed with deflate
+	 */
+	static final byte CODEC_DEFLATE = 1;
+
+	/**
+	 * Default length, in characters, above which a content is compressed
+	 */
+	static final int DEFAULT_THRESHOLD_CHARS = 16 * 1024;
+
+	// This class cannot be instantiated
+	private ContentCodec() {
+	}
+
+	/**
+	 * Compresses a content.
+	 *
+	 * @return the codec marker followed by the compressed bytes, or null if
+	 *         compressing does not make the content smaller
+	 */
+	static byte[] encode(String text) {
+		byte[] bytes;
+		try {
+			bytes = text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		Deflater deflater = new Deflater();
+		try {
+			deflater.setInput(bytes);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+			out.write(CODEC_DEFLATE);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+				if (out.size() >= bytes.length) {
+					return null;
+				}
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Returns the content a BLOB written by {@link #encode(String)} holds.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the codec is unknown or the data is corrupt
+	 */
+	static String decode(byte[] data) {
+		if (data.length == 0 || data[0] != CODEC_DEFLATE) {
+			throw new IllegalArgumentException("Unknown content codec");
+		}
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, 1, data.length - 1);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+			byte[] buffer = new byte[8192];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buffer);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IllegalArgumentException("Truncated content");
+				}
+				out.write(buffer, 0, n);
+			}
+			return out.toString("UTF-8");
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Corrupt content", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Reads a content column, decompressing it if it is stored compressed
+	 */
+	static String read(Cursor c, int columnIndex) {
+		if (c.getType(columnIndex) == Cursor.FIELD_TYPE_BLOB) {
+			return decode(c.getBlob(columnIndex));
+		}
+		return c.getString(columnIndex);
+	}
+
+	/**
+	 * Shows the compressed contents of a cursor as text. A content is only
+	 * decompressed when it is read, so a caller that does not read the
+	 * content column, or only reads some rows, does not pay for the others.
+	 */
+	static class DecodingCursor extends CursorWrapper {
+		private final int mColumnIndex;
+
+		DecodingCursor(Cursor cursor, int columnIndex) {
+			super(cursor);
+			mColumnIndex = columnIndex;
+		}
+
+		@Override
+		public String getString(int columnIndex) {
+			if (columnIndex == mColumnIndex) {
+				return read(getWrappedCursor(), columnIndex);
+			}
+			return super.getString(columnIndex);
+		}
+
+		@Override
+		public int getType(int columnIndex) {
+			int type = super.getType(columnIndex);
+			if (columnIndex == mColumnIndex && type == FIELD_TYPE_BLOB) {
+				return FIELD_TYPE_STRING;
+			}
+			return type;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package daniel.stanciu.dropboxnotes;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * SQLite settings of the notes database for a class of device: the page cache,
+ * memory-mapped reads and where temporary tables go. The profile is picked by
+ * the memory class of the device, so devices with little memory for the app
+ * keep the SQLite defaults. The page size is left to SQLite, which fixes it
+ * when the database file is created, before the open helper gets to it.
+ *
+ * These settings belong to a connection. The open helper only hands over its
+ * primary connection, so the profile covers that one; the reader connections
+ * SQLiteDatabase opens on its own in write-ahead logging mode, for queries on
+ * other threads while a write runs, keep the SQLite defaults.
+ *
+ * Memory-mapped reads let SQLite copy the pages of large note bodies straight
+ * out of the mapped file instead of reading them into its page cache first.
+ * They need SQLite 3.7.17, older versions ignore the pragma.
+ */
+class DatabaseTuning {
+	private static final String TAG = "DatabaseTuning";
+
+	/**
+	 * Devices giving an app 32 MB or less
+	 */
+	static final DatabaseTuning LOW = new DatabaseTuning("low", 256, 0, false);
+
+	/**
+	 * Devices giving an app up to 64 MB
+	 */
+	static final DatabaseTuning NORMAL = new DatabaseTuning("normal", 1024, 8 * 1024 * 1024, true);
+
+	/**
+	 * Devices giving an app more than 64 MB
+	 */
+	static final DatabaseTuning HIGH = new DatabaseTuning("high", 2048, 32 * 1024 * 1024, true);
+
+	final String mName;
+	final int mCacheSizeKib;
+	final long mMmapSizeBytes;
+	final boolean mTempStoreMemory;
+
+	/**
+	 * @param cacheSizeKib
+	 *            the page cache of each connection
+	 * @param mmapSizeBytes
+	 *            how much of the file is memory-mapped, 0 for none
+	 * @param tempStoreMemory
+	 *            whether temporary tables and indexes, such as those of a
+	 *            sort, are kept in memory
+	 */
+	private DatabaseTuning(String name, int cacheSizeKib, long mmapSizeBytes, boolean tempStoreMemory) {
+		mName = name;
+		mCacheSizeKib = cacheSizeKib;
+		mMmapSizeBytes = mmapSizeBytes;
+		mTempStoreMemory = tempStoreMemory;
+	}
+
+	/**
+	 * Returns the profile of the device the app runs on
+	 */
+	static DatabaseTuning forDevice(Context context) {
+		ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		return forMemoryClass(am.getMemoryClass());
+	}
+
+	/**
+	 * Returns the profile of a memory class, in megabytes
+	 */
+	static DatabaseTuning forMemoryClass(int memoryClass) {
+		if (memoryClass <= 32) {
+			return LOW;
+		}
+		if (memoryClass <= 64) {
+			return NORMAL;
+		}
+		return HIGH;
+	}
+
+	/**
+	 * Applies the profile to the primary connection of a database. The
+	 * synchronous level is matched to the journal mode, so call it after the
+	 * journal mode is set.
+	 */
+	void apply(SQLiteDatabase db) {
+		// the kibibyte form of cache_size needs SQLite 3.7.10, pages work on
+		// every version
+		long cachePages = Math.max(1, mCacheSizeKib * 1024L / db.getPageSize());
+		db.execSQL("PRAGMA cache_size = " + cachePages);
+		db.execSQL("PRAGMA temp_store = " + (mTempStoreMemory ? "MEMORY" : "DEFAULT"));
+		if (!db.isReadOnly()) {
+			// a commit in WAL mode cannot be lost to corruption with NORMAL,
+			// only rolled back by a power loss; a rollback journal needs FULL
+			boolean wal = "wal".equalsIgnoreCase(queryPragma(db, "PRAGMA journal_mode"));
+			db.execSQL("PRAGMA synchronous = " + (wal ? "NORMAL" : "FULL"));
+		}
+		if (mMmapSizeBytes > 0) {
+			String mmapSize = queryPragma(db, "PRAGMA mmap_size = " + mMmapSizeBytes);
+			if (mmapSize == null) {
+				Log.i(TAG, "Memory-mapped I/O not available");
+			}
+		}
+	}
+
+	/**
+	 * Runs a pragma and returns the first column of its row, or null if the
+	 * pragma returns nothing, as unknown pragmas do.
+	 */
+	private static String queryPragma(SQLiteDatabase db, String pragma) {
+		Cursor c = db.rawQuery(pragma, null);
+		try {
+			return c.moveToFirst() ? c.getString(0) : null;
+		} finally {
+			c.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return TAG + "[" + mName + ",cache=" + mCacheSizeKib + "KiB,mmap=" + mMmapSizeBytes
+				+ ",tempStoreMemory=" + mTempStoreMemory + "]";
+	}
+}
@@ -31,6 +31,7 @@ import android.content.ClipboardManager;
 import android.content.ClipData;
 import android.content.ComponentName;
 import android.content.ContentUris;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -39,14 +40,17 @@ import android.content.SharedPreferences.Editor;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.view.ContextMenu;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.Window;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.widget.AdapterView;
 import android.widget.Button;
@@ -72,6 +76,10 @@ public class DropboxNotesActivity extends ListActivity {
 	final static private String ACCESS_KEY_NAME = "ACCESS_KEY";
 	final static private String ACCESS_SECRET_NAME = "ACCESS_SECRET";
 	final static private String CURRENT_FOLDER_NAME = "CURRENT_FOLDER";
+	final static private String LAST_COMPACTION_NAME = "LAST_COMPACTION";
+	final static private String SORT_NAME = "SORT";
+	// how often the deleted notes are compacted
+	final static private long COMPACTION_INTERVAL_MILLIS = 24L * 60 * 60 * 1000;
 
 	// For logging and debugging
 	private static final String TAG = "DropboxNotes";
@@ -82,6 +90,7 @@ public class DropboxNotesActivity extends ListActivity {
 	private static final String[] PROJECTION = new String[] {
 			NotePad.Notes._ID, // 0
 			NotePad.Notes.COLUMN_NAME_TITLE, // 1
+			NotePad.Notes.COLUMN_NAME_PREVIEW, // 2, the pager adds the sort key
 	};
 
 	/**
@@ -93,8 +102,9 @@ public class DropboxNotesActivity extends ListActivity {
 	};
 	
 	private static final String[] FOLDERS_PROJECTION = new String[] {
-		"1 as _id",
-		NotePad.Notes.COLUMN_NAME_FOLDER
+		NotePad.Notes._ID,
+		NotePad.Notes.COLUMN_NAME_FOLDER,
+		NotePad.Notes.COLUMN_NAME_LIVE_COUNT
 	};
 
 	// private static final String[] NOTE_DETAILS_PROJECTION = new String[] {
@@ -106,6 +116,8 @@ public class DropboxNotesActivity extends ListActivity {
 	private static final int COLUMN_INDEX_TITLE = 1;
 	public static final boolean IS_DEBUGGING = false;
 	private static final int DYNAMIC_FOLDERS = 56;
+	// ids of the folder menu items, well below the generated resource ids
+	private static final int FIRST_FOLDER_ITEM_ID = 1000;
 	private static final int MOVE_TO_DIALOG_ID = 1;
 	private static final int CONFIRM_CLOUD_DELETE_DIALOG_ID = 2;
 
@@ -117,9 +129,14 @@ public class DropboxNotesActivity extends ListActivity {
 	private boolean mAlreadyLinked = false;
 	private Uri mCurrentUri = null;
 	private ArrayList<ContentValues> cloudDeletedNotes = null;
+	private SyncWithDropbox mSyncTask = null;
+	private NoteListPager mPager = null;
 
 	
 	private String currentFolder = "";
+	private String mSort = NotePad.Notes.SORT_MODIFIED;
+	// folder names of the items of the folders menu, by item id
+	private SparseArray<String> folderItems = new SparseArray<String>();
 	private String savedFolder = "";
 
 	/**
@@ -128,9 +145,12 @@ public class DropboxNotesActivity extends ListActivity {
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		// the sync runs in the background and reports its progress in the title bar
+		requestWindowFeature(Window.FEATURE_PROGRESS);
 
 		SharedPreferences prefs = getSharedPreferences(ACCOUNT_PREFS_NAME, 0);
 		savedFolder = currentFolder = prefs.getString(CURRENT_FOLDER_NAME, "");
+		mSort = prefs.getString(SORT_NAME, NotePad.Notes.SORT_MODIFIED);
 		if (currentFolder.isEmpty()) {
 			setTitle(R.string.menu_all_notes);
 		} else if (currentFolder.equals("/")) {
@@ -165,15 +185,6 @@ public class DropboxNotesActivity extends ListActivity {
 		 */
 		getListView().setOnCreateContextMenuListener(this);
 
-		/*
-		 * Performs a managed query. The Activity handles closing and requerying
-		 * the cursor when needed.
-		 * 
-		 * Please see the introductory note about performing provider operations
-		 * on the UI thread.
-		 */
-		Cursor cursor = getCurrentCursor();
-
 		/*
 		 * The following two arrays create a "map" between columns in the cursor
 		 * and view IDs for items in the ListView. Each element in the
@@ -183,29 +194,42 @@ public class DropboxNotesActivity extends ListActivity {
 		 * will appear in the ListView.
 		 */
 
-		// The names of the cursor columns to display in the view, initialized
-		// to the title column
-		String[] dataColumns = { NotePad.Notes.COLUMN_NAME_TITLE };
+		// The names of the cursor columns to display in the view, the title
+		// and the preview of the content
+		String[] dataColumns = { NotePad.Notes.COLUMN_NAME_TITLE,
+				NotePad.Notes.COLUMN_NAME_PREVIEW };
 
-		// The view IDs that will display the cursor columns, initialized to the
-		// TextView in
-		// noteslist_item.xml
-		int[] viewIDs = { android.R.id.text1 };
+		// The view IDs that will display the cursor columns, the TextViews in
+		// noteslist_preview_item.xml
+		int[] viewIDs = { android.R.id.text1, android.R.id.text2 };
 
-		// Creates the backing adapter for the ListView.
-		@SuppressWarnings("deprecation")
+		// Creates the backing adapter for the ListView. The pager fills it and
+		// requeries it when the notes change.
 		SimpleCursorAdapter adapter = new SimpleCursorAdapter(this, // The
 																	// Context
 																	// for the
 																	// ListView
-				R.layout.noteslist_item, // Points to the XML for a list item
-				cursor, // The cursor to get items from
-				dataColumns, viewIDs);
+				R.layout.noteslist_preview_item, // Points to the XML for a list item
+				null, // The pager sets the cursor
+				dataColumns, viewIDs, 0);
 
 		// Sets the ListView's adapter to be the cursor adapter that was just
 		// created.
 		setListAdapter(adapter);
 
+		/*
+		 * Loads the notes a page at a time, the next page being loaded when the
+		 * list is scrolled near its end.
+		 * 
+		 * Please see the introductory note about performing provider operations
+		 * on the UI thread.
+		 */
+		mPager = new NoteListPager(getContentResolver(), adapter, PROJECTION,
+				" " + NotePad.Notes.COLUMN_NAME_DELETED + " = 0 "); // Only notes which are not deleted.
+		mPager.setSort(mSort);
+		mPager.setListUri(getCurrentListUri());
+		getListView().setOnScrollListener(mPager);
+
 		if (!IS_DEBUGGING) {
 			// Dropbox related
 			AndroidAuthSession session = buildSession();
@@ -214,44 +238,73 @@ public class DropboxNotesActivity extends ListActivity {
 			checkAppKeySetup();
 		}
 
+		compactIfDue();
 	}
 
-	@SuppressWarnings("deprecation")
-	private Cursor getCurrentCursor() {
-		Cursor cursor = null;
+	/**
+	 * Compacts the deleted notes in the background, at most once a day. The
+	 * sync removes the notes it deleted from Dropbox; this also covers notes
+	 * that never reached Dropbox and devices that never sync.
+	 */
+	private void compactIfDue() {
+		SharedPreferences prefs = getSharedPreferences(ACCOUNT_PREFS_NAME, 0);
+		long now = System.currentTimeMillis();
+		if (now - prefs.getLong(LAST_COMPACTION_NAME, 0) < COMPACTION_INTERVAL_MILLIS) {
+			return;
+		}
+		Editor edit = prefs.edit();
+		edit.putLong(LAST_COMPACTION_NAME, now);
+		edit.commit();
+
+		final ContentResolver resolver = getContentResolver();
+		new AsyncTask<Void, Void, Void>() {
+			@Override
+			protected Void doInBackground(Void... params) {
+				Bundle result = resolver.call(NotePad.Notes.CONTENT_URI,
+						NotePad.METHOD_COMPACT, null, null);
+				Log.d(TAG, "Compaction stripped " + result.getInt(NotePad.KEY_COMPACT_STRIPPED)
+						+ " deleted notes, purged " + result.getInt(NotePad.KEY_COMPACT_PURGED)
+						+ ", freed " + result.getLong(NotePad.KEY_COMPACT_FREED_PAGES) + " pages");
+				return null;
+			}
+		}.execute();
+	}
+
+	private Uri getCurrentListUri() {
 		if (currentFolder.isEmpty()) {
-			cursor = managedQuery(getIntent().getData(), // Use the
-																// default
-					// content URI for
-					// the provider.
-					PROJECTION, // Return the note ID and title for each note.
-					" " + NotePad.Notes.COLUMN_NAME_DELETED + " = 0 ", // Only
-																		// notes
-					// which are
-					// not
-					// deleted.
-					null, // No where clause, therefore no where column values.
-					NotePad.Notes.DEFAULT_SORT_ORDER // Use the default sort
-														// order.
-			);
+			// Use the default content URI for the provider.
+			return getIntent().getData();
 		} else {
 			Uri uri = NotePad.Notes.FOLDER_NAME_URI_BASE;
-			cursor = managedQuery(Uri.withAppendedPath(uri, Uri.encode(currentFolder)),
-					PROJECTION,
-					" " + NotePad.Notes.COLUMN_NAME_DELETED + " = 0 ",
-					null,
-					NotePad.Notes.DEFAULT_SORT_ORDER);
+			return Uri.withAppendedPath(uri, Uri.encode(currentFolder));
 		}
-		return cursor;
 	}
 	
-	@SuppressWarnings("deprecation")
 	private void replaceAdapter(String folderPath) {
-		SimpleCursorAdapter adapter = (SimpleCursorAdapter)getListAdapter();
-		Cursor oldCursor = adapter.getCursor();
-		stopManagingCursor(oldCursor); // because it will be closed when changing cursor
 		currentFolder = folderPath;
-		adapter.changeCursor(getCurrentCursor());
+		mPager.setListUri(getCurrentListUri());
+		getListView().setSelection(0);
+	}
+	
+	/**
+	 * Sorts the list in another sort mode and remembers it
+	 */
+	private void setSort(String sort) {
+		mSort = sort;
+		SharedPreferences prefs = getSharedPreferences(ACCOUNT_PREFS_NAME, 0);
+		Editor editor = prefs.edit();
+		editor.putString(SORT_NAME, sort);
+		editor.commit();
+		mPager.setSort(sort);
+		getListView().setSelection(0);
+	}
+
+	@Override
+	protected void onDestroy() {
+		if (mPager != null) {
+			mPager.close();
+		}
+		super.onDestroy();
 	}
 	
 	@Override
@@ -309,8 +362,29 @@ public class DropboxNotesActivity extends ListActivity {
 	}
 
 	private void syncWithDropbox() {
-		SyncWithDropbox syncTask = new SyncWithDropbox(this, mApi);
-		syncTask.execute();
+		if (mSyncTask != null) {
+			// already synchronizing
+			return;
+		}
+		mSyncTask = new SyncWithDropbox(this, mApi);
+		mSyncTask.execute();
+	}
+
+	void onSyncStarted() {
+		setProgressBarVisibility(true);
+		setProgress(0);
+		invalidateOptionsMenu();
+	}
+
+	void onSyncProgress(int percent) {
+		// the window progress bar goes from 0 to 10000
+		setProgress(percent * 100);
+	}
+
+	void onSyncFinished() {
+		mSyncTask = null;
+		setProgressBarVisibility(false);
+		invalidateOptionsMenu();
 	}
 
 	private void logOut() {
@@ -409,11 +483,11 @@ public class DropboxNotesActivity extends ListActivity {
 		if (stored != null) {
 			AccessTokenPair accessToken = new AccessTokenPair(stored[0],
 					stored[1]);
-			session = new AndroidAuthSession(appKeyPair,
+			session = new DropboxSession(appKeyPair,
 					DropboxAppDetails.ACCESS_TYPE, accessToken);
 			mAlreadyLinked = true;
 		} else {
-			session = new AndroidAuthSession(appKeyPair,
+			session = new DropboxSession(appKeyPair,
 					DropboxAppDetails.ACCESS_TYPE);
 			mAlreadyLinked = false;
 		}
@@ -468,6 +542,7 @@ public class DropboxNotesActivity extends ListActivity {
 		if (mLoggedIn) {
 			dropboxAuthItem.setTitle(R.string.menu_signout);
 			dropboxSyncItem.setVisible(true);
+			dropboxSyncItem.setTitle(mSyncTask != null ? R.string.menu_cancel_sync : R.string.menu_sync);
 		} else {
 			dropboxAuthItem.setTitle(R.string.menu_signin);
 			dropboxSyncItem.setVisible(false);
@@ -477,6 +552,16 @@ public class DropboxNotesActivity extends ListActivity {
 		Menu foldersMenu = folders.getSubMenu();
 		populateFolders(foldersMenu);
 
+		int sortItemId;
+		if (NotePad.Notes.SORT_TITLE.equals(mSort)) {
+			sortItemId = R.id.menu_sort_title;
+		} else if (NotePad.Notes.SORT_CREATED.equals(mSort)) {
+			sortItemId = R.id.menu_sort_created;
+		} else {
+			sortItemId = R.id.menu_sort_modified;
+		}
+		menu.findItem(sortItemId).setChecked(true);
+
 		// The paste menu item is enabled if there is data on the clipboard.
 		ClipboardManager clipboard = (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
 
@@ -572,8 +657,11 @@ public class DropboxNotesActivity extends ListActivity {
 		}
 		
 		int folderIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_FOLDER);
+		int countIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_LIVE_COUNT);
 		
 		foldersMenu.removeGroup(DYNAMIC_FOLDERS);
+		folderItems.clear();
+		int itemId = FIRST_FOLDER_ITEM_ID;
 		
 		while (cursor.moveToNext()) {
 			String folder = cursor.getString(folderIndex);
@@ -587,7 +675,9 @@ public class DropboxNotesActivity extends ListActivity {
 				folder = folder.substring(0, folder.length() - 1);
 			}
 			//MenuItem mi = foldersMenu.add(folder);
-			foldersMenu.add(DYNAMIC_FOLDERS, Menu.NONE, Menu.NONE, folder);
+			folderItems.put(itemId, folder);
+			foldersMenu.add(DYNAMIC_FOLDERS, itemId++, Menu.NONE,
+					getString(R.string.folder_with_count, folder, cursor.getInt(countIndex)));
 		}
 		
 		cursor.close();
@@ -647,7 +737,9 @@ public class DropboxNotesActivity extends ListActivity {
 			}
 			return true;
 		case R.id.menu_sync:
-			if (mLoggedIn) {
+			if (mSyncTask != null) {
+				mSyncTask.cancelSync();
+			} else if (mLoggedIn) {
 				syncWithDropbox();
 			}
 			return true;
@@ -659,11 +751,23 @@ public class DropboxNotesActivity extends ListActivity {
 			replaceAdapter("/");
 			setTitle(R.string.menu_root_folder);
 			return true;
+		case R.id.menu_sort_modified:
+			setSort(NotePad.Notes.SORT_MODIFIED);
+			return true;
+		case R.id.menu_sort_created:
+			setSort(NotePad.Notes.SORT_CREATED);
+			return true;
+		case R.id.menu_sort_title:
+			setSort(NotePad.Notes.SORT_TITLE);
+			return true;
 		default:
-			replaceAdapter("/" + (String) item.getTitle() + "/");
-			setTitle(item.getTitle());
+			String folder = folderItems.get(item.getItemId());
+			if (folder == null) {
+				return super.onOptionsItemSelected(item);
+			}
+			replaceAdapter("/" + folder + "/");
+			setTitle(folder);
 			return true;
-			//return super.onOptionsItemSelected(item);
 		}
 	}
 
@@ -0,0 +1,277 @@
+package daniel.stanciu.dropboxnotes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import com.dropbox.client2.DropboxAPI;
+import com.dropbox.client2.android.AndroidAuthSession;
+import com.dropbox.client2.session.AccessTokenPair;
+import com.dropbox.client2.session.AppKeyPair;
+
+/**
+ * Dropbox session whose requests share one HTTP client for the whole process.
+ * The SDK gives every session its own client, so each new activity used to
+ * start over with cold connections and a TLS handshake per host.
+ *
+ * The shared client keeps connections alive between requests, sizes its pool
+ * to the number of transfers a sync runs at once, asks for gzip on every
+ * request and counts how many connections it had to open, so connection reuse
+ * can be checked in the log.
+ */
+public class DropboxSession extends AndroidAuthSession {
+	private static final String TAG = "DropboxSession";
+
+	/**
+	 * Transfers a sync runs at the same time. A sync is sequential; the spare
+	 * connection lets a new request start while a closed download is still
+	 * being released.
+	 */
+	private static final int MAX_TRANSFERS = 2;
+
+	/**
+	 * Hosts a sync talks to: the API server and the content server
+	 */
+	private static final int ROUTES = 2;
+
+	private static final int CONNECTION_TIMEOUT_MILLIS = 15000;
+	private static final int SOCKET_TIMEOUT_MILLIS = 30000;
+	private static final int SOCKET_BUFFER_SIZE = 8192;
+
+	/**
+	 * How long an idle connection is kept when the server does not say
+	 */
+	private static final long DEFAULT_KEEP_ALIVE_MILLIS = 20000;
+
+	private static DefaultHttpClient sClient;
+	private static final AtomicInteger sRequestCount = new AtomicInteger();
+	private static final AtomicInteger sConnectionCount = new AtomicInteger();
+
+	public DropboxSession(AppKeyPair appKeyPair, AccessType type) {
+		super(appKeyPair, type);
+	}
+
+	public DropboxSession(AppKeyPair appKeyPair, AccessType type, AccessTokenPair accessTokenPair) {
+		super(appKeyPair, type, accessTokenPair);
+	}
+
+	@Override
+	public HttpClient getHttpClient() {
+		return getSharedClient();
+	}
+
+	@Override
+	public void setRequestTimeout(HttpUriRequest request) {
+		HttpParams params = request.getParams();
+		HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT_MILLIS);
+		HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT_MILLIS);
+	}
+
+	private static synchronized DefaultHttpClient getSharedClient() {
+		if (sClient == null) {
+			HttpParams connParams = new BasicHttpParams();
+			ConnManagerParams.setMaxConnectionsPerRoute(connParams, new ConnPerRouteBean(MAX_TRANSFERS));
+			ConnManagerParams.setMaxTotalConnections(connParams, MAX_TRANSFERS * ROUTES);
+
+			SchemeRegistry schemeRegistry = new SchemeRegistry();
+			schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+			schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+			ClientConnectionManager cm = new ThreadSafeClientConnManager(connParams, schemeRegistry) {
+				@Override
+				protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schreg) {
+					return new CountingConnectionOperator(schreg);
+				}
+			};
+
+			HttpParams params = new BasicHttpParams();
+			HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT_MILLIS);
+			HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT_MILLIS);
+			HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+			HttpConnectionParams.setStaleCheckingEnabled(params, true);
+			HttpProtocolParams.setUserAgent(params, "OfficialDropboxJavaSDK/" + DropboxAPI.SDK_VERSION);
+
+			DefaultHttpClient client = new DefaultHttpClient(cm, params) {
+				@Override
+				protected ConnectionKeepAliveStrategy createConnectionKeepAliveStrategy() {
+					return new KeepAliveStrategy();
+				}
+			};
+			client.addRequestInterceptor(new HttpRequestInterceptor() {
+				@Override
+				public void process(HttpRequest request, HttpContext context)
+						throws HttpException, IOException {
+					sRequestCount.incrementAndGet();
+					if (!request.containsHeader("Accept-Encoding")) {
+						request.addHeader("Accept-Encoding", "gzip");
+					}
+				}
+			});
+			client.addResponseInterceptor(new HttpResponseInterceptor() {
+				@Override
+				public void process(HttpResponse response, HttpContext context)
+						throws HttpException, IOException {
+					HttpEntity entity = response.getEntity();
+					if (entity == null) {
+						return;
+					}
+					Header encoding = entity.getContentEncoding();
+					if (encoding == null) {
+						return;
+					}
+					for (HeaderElement element : encoding.getElements()) {
+						if (element.getName().equalsIgnoreCase("gzip")) {
+							response.setEntity(new GzipDecompressingEntity(entity));
+							return;
+						}
+					}
+				}
+			});
+			sClient = client;
+		}
+		return sClient;
+	}
+
+	/**
+	 * Closes pooled connections that expired or stayed idle longer than the
+	 * default keep-alive time. Called when a sync is done, since nothing else
+	 * watches the pool.
+	 */
+	public static synchronized void closeIdleConnections() {
+		if (sClient != null) {
+			ClientConnectionManager cm = sClient.getConnectionManager();
+			cm.closeExpiredConnections();
+			cm.closeIdleConnections(DEFAULT_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Returns the number of requests sent, including retries and redirects
+	 */
+	public static int getRequestCount() {
+		return sRequestCount.get();
+	}
+
+	/**
+	 * Returns the number of connections opened
+	 */
+	public static int getConnectionsOpened() {
+		return sConnectionCount.get();
+	}
+
+	/**
+	 * Returns the number of requests that were sent over a connection kept
+	 * alive from an earlier request
+	 */
+	public static int getConnectionsReused() {
+		return Math.max(0, sRequestCount.get() - sConnectionCount.get());
+	}
+
+	/**
+	 * Summary of the connection counters, for the log
+	 */
+	public static String getConnectionStats() {
+		return TAG + "[requests=" + getRequestCount() + ",opened=" + getConnectionsOpened()
+				+ ",reused=" + getConnectionsReused() + "]";
+	}
+
+	/**
+	 * Counts the connections the pool has to open
+	 */
+	private static class CountingConnectionOperator extends DefaultClientConnectionOperator {
+		CountingConnectionOperator(SchemeRegistry schemes) {
+			super(schemes);
+		}
+
+		@Override
+		public void openConnection(OperatedClientConnection conn, HttpHost target,
+				InetAddress local, HttpContext context, HttpParams params) throws IOException {
+			sConnectionCount.incrementAndGet();
+			super.openConnection(conn, target, local, context, params);
+		}
+	}
+
+	/**
+	 * Keeps connections for as long as the server's Keep-Alive header allows,
+	 * or for the default time if there is none
+	 */
+	private static class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+		@Override
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+			while (it.hasNext()) {
+				HeaderElement element = it.nextElement();
+				String value = element.getValue();
+				if (value != null && element.getName().equalsIgnoreCase("timeout")) {
+					try {
+						return Math.min(Long.parseLong(value) * 1000, DEFAULT_KEEP_ALIVE_MILLIS);
+					} catch (NumberFormatException e) {
+					}
+				}
+			}
+			return DEFAULT_KEEP_ALIVE_MILLIS;
+		}
+	}
+
+	/**
+	 * Inflates a gzip encoded response body as it is read
+	 */
+	private static class GzipDecompressingEntity extends HttpEntityWrapper {
+		GzipDecompressingEntity(HttpEntity entity) {
+			super(entity);
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return new GZIPInputStream(wrappedEntity.getContent());
+		}
+
+		@Override
+		public Header getContentEncoding() {
+			// the content is no longer encoded
+			return null;
+		}
+
+		@Override
+		public long getContentLength() {
+			// unknown once inflated
+			return -1;
+		}
+	}
+}
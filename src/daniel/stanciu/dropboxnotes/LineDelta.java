@@ -0,0 +1,112 @@
+package daniel.stanciu.dropboxnotes;
+
+/**
+ * Line based delta between two texts, built from the matches of
+ * {@link LineDiff}. A delta only holds the inserted lines, so the delta
+ * between two versions of a note that differ in a few lines is a few lines
+ * long, however long the note is.
+ *
+ * A delta is a sequence of commands, each a command character followed by a
+ * number and a newline: "=n" copies the next n lines of the old text, "-n"
+ * skips them, and "+n" inserts the n characters that follow the newline.
+ */
+public final class LineDelta {
+
+	// This class cannot be instantiated
+	private LineDelta() {
+	}
+
+	/**
+	 * Returns the delta that turns one text into another.
+	 */
+	public static String encode(String from, String to) {
+		LineDiff.LineTable table = new LineDiff.LineTable();
+		int[] a = table.split(from);
+		int[] b = table.split(to);
+		int[] matches = LineDiff.match(a, b);
+		StringBuilder delta = new StringBuilder();
+		int i = 0;
+		int j = 0;
+		while (i < a.length || j < b.length) {
+			// lines of the old text that were removed
+			int start = i;
+			while (i < a.length && matches[i] == -1) {
+				i++;
+			}
+			if (i > start) {
+				delta.append('-').append(i - start).append('\n');
+			}
+			// lines of the new text before the next matching line
+			int next = i < a.length ? matches[i] : b.length;
+			if (next > j) {
+				StringBuilder inserted = new StringBuilder();
+				for (; j < next; j++) {
+					inserted.append(table.getLine(b[j]));
+				}
+				delta.append('+').append(inserted.length()).append('\n').append(inserted);
+			}
+			// lines kept
+			start = i;
+			while (i < a.length && matches[i] == j) {
+				i++;
+				j++;
+			}
+			if (i > start) {
+				delta.append('=').append(i - start).append('\n');
+			}
+		}
+		return delta.toString();
+	}
+
+	/**
+	 * Applies a delta to the text it was encoded from.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the delta is malformed
+	 */
+	public static String apply(String from, String delta) {
+		StringBuilder to = new StringBuilder(from.length() + delta.length());
+		int pos = 0;
+		int p = 0;
+		try {
+			while (p < delta.length()) {
+				char command = delta.charAt(p);
+				int end = delta.indexOf('\n', p);
+				int n = Integer.parseInt(delta.substring(p + 1, end));
+				p = end + 1;
+				switch (command) {
+				case '=':
+					end = skipLines(from, pos, n);
+					to.append(from, pos, end);
+					pos = end;
+					break;
+				case '-':
+					pos = skipLines(from, pos, n);
+					break;
+				case '+':
+					to.append(delta, p, p + n);
+					p += n;
+					break;
+				default:
+					throw new IllegalArgumentException("Bad delta command " + command);
+				}
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Truncated delta", e);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad delta count", e);
+		}
+		return to.toString();
+	}
+
+	/**
+	 * Returns the position after a number of lines of a text
+	 */
+	private static int skipLines(String text, int pos, int n) {
+		for (; n > 0; n--) {
+			int end = text.indexOf('\n', pos);
+			pos = end == -1 ? text.length() : end + 1;
+		}
+		return pos;
+	}
+}
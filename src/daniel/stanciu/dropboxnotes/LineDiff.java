@@ -0,0 +1,195 @@
+package daniel.stanciu.dropboxnotes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Line based diff of two texts, using Myers' O(ND) algorithm with the linear
+ * space divide and conquer refinement: instead of keeping every furthest
+ * reaching path, the middle snake of the edit graph is located by running the
+ * search from both ends, and the halves on each side of it are diffed
+ * recursively. Memory use is therefore proportional to the length of the texts,
+ * not to the square of the number of differences.
+ *
+ * Lines are compared as integers, after every distinct line has been given an
+ * id by a {@link LineTable}.
+ */
+public final class LineDiff {
+
+	// This class cannot be instantiated
+	private LineDiff() {
+	}
+
+	/**
+	 * Assigns the same integer id to equal lines, so texts can be compared as
+	 * arrays of ints.
+	 */
+	public static final class LineTable {
+		private final HashMap<String, Integer> mIds = new HashMap<String, Integer>();
+		private final ArrayList<String> mLines = new ArrayList<String>();
+
+		/**
+		 * Splits a text into lines, keeping the line terminators, and returns
+		 * the id of each line.
+		 */
+		public int[] split(String text) {
+			int[] ids = new int[16];
+			int count = 0;
+			int start = 0;
+			int length = text.length();
+			while (start < length) {
+				int end = text.indexOf('\n', start);
+				end = (end == -1) ? length : end + 1;
+				if (count == ids.length) {
+					ids = Arrays.copyOf(ids, count * 2);
+				}
+				ids[count++] = idOf(text.substring(start, end));
+				start = end;
+			}
+			return Arrays.copyOf(ids, count);
+		}
+
+		private int idOf(String line) {
+			Integer id = mIds.get(line);
+			if (id == null) {
+				id = Integer.valueOf(mLines.size());
+				mIds.put(line, id);
+				mLines.add(line);
+			}
+			return id.intValue();
+		}
+
+		/**
+		 * Returns the line with the given id, including its terminator.
+		 */
+		public String getLine(int id) {
+			return mLines.get(id);
+		}
+	}
+
+	/**
+	 * Computes a longest common subsequence of two line sequences.
+	 *
+	 * @return for each line of a, the index of the matching line of b, or -1
+	 *         if the line was removed. Matched indexes are strictly increasing.
+	 */
+	public static int[] match(int[] a, int[] b) {
+		int[] matches = new int[a.length];
+		Arrays.fill(matches, -1);
+		diff(a, 0, a.length, b, 0, b.length, matches);
+		return matches;
+	}
+
+	private static void diff(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi, int[] matches) {
+		// common prefix and suffix are matched directly
+		while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+			matches[aLo++] = bLo++;
+		}
+		while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+			matches[--aHi] = --bHi;
+		}
+		if (aLo == aHi || bLo == bHi) {
+			// only insertions or only deletions are left
+			return;
+		}
+		long split = middleSnake(a, aLo, aHi, b, bLo, bHi);
+		if (split < 0) {
+			// nothing in common
+			return;
+		}
+		int x = (int) (split >>> 32);
+		int y = (int) split;
+		diff(a, aLo, aLo + x, b, bLo, bLo + y, matches);
+		diff(a, aLo + x, aHi, b, bLo + y, bHi, matches);
+	}
+
+	/**
+	 * Finds the point where the forward and the reverse searches of the edit
+	 * graph overlap. The search arrays only live for the duration of this call,
+	 * so they are not kept alive while the two halves are diffed.
+	 *
+	 * @return the split point, x in the high and y in the low 32 bits, relative
+	 *         to aLo and bLo, or -1 if the ranges have no line in common
+	 */
+	private static long middleSnake(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi) {
+		int n = aHi - aLo;
+		int m = bHi - bLo;
+		int maxD = (n + m + 1) / 2;
+		int offset = maxD;
+		int length = 2 * maxD + 2;
+		int[] vf = new int[length];
+		int[] vr = new int[length];
+		Arrays.fill(vf, -1);
+		Arrays.fill(vr, -1);
+		vf[offset + 1] = 0;
+		vr[offset + 1] = 0;
+		int delta = n - m;
+		// with an odd delta the paths meet while walking forward
+		boolean front = (delta & 1) != 0;
+		// diagonals that ran off the edit graph are not walked again
+		int kfStart = 0;
+		int kfEnd = 0;
+		int krStart = 0;
+		int krEnd = 0;
+		for (int d = 0; d < maxD; d++) {
+			for (int k = -d + kfStart; k <= d - kfEnd; k += 2) {
+				int kOffset = offset + k;
+				int x;
+				if (k == -d || (k != d && vf[kOffset - 1] < vf[kOffset + 1])) {
+					x = vf[kOffset + 1];
+				} else {
+					x = vf[kOffset - 1] + 1;
+				}
+				int y = x - k;
+				while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+					x++;
+					y++;
+				}
+				vf[kOffset] = x;
+				if (x > n) {
+					kfEnd += 2;
+				} else if (y > m) {
+					kfStart += 2;
+				} else if (front) {
+					int rOffset = offset + delta - k;
+					if (rOffset >= 0 && rOffset < length && vr[rOffset] != -1) {
+						if (x >= n - vr[rOffset]) {
+							return ((long) x << 32) | y;
+						}
+					}
+				}
+			}
+			for (int k = -d + krStart; k <= d - krEnd; k += 2) {
+				int kOffset = offset + k;
+				int x;
+				if (k == -d || (k != d && vr[kOffset - 1] < vr[kOffset + 1])) {
+					x = vr[kOffset + 1];
+				} else {
+					x = vr[kOffset - 1] + 1;
+				}
+				int y = x - k;
+				while (x < n && y < m && a[aHi - 1 - x] == b[bHi - 1 - y]) {
+					x++;
+					y++;
+				}
+				vr[kOffset] = x;
+				if (x > n) {
+					krEnd += 2;
+				} else if (y > m) {
+					krStart += 2;
+				} else if (!front) {
+					int fOffset = offset + delta - k;
+					if (fOffset >= 0 && fOffset < length && vf[fOffset] != -1) {
+						int fx = vf[fOffset];
+						int fy = offset + fx - fOffset;
+						if (fx >= n - x) {
+							return ((long) fx << 32) | fy;
+						}
+					}
+				}
+			}
+		}
+		return -1;
+	}
+}
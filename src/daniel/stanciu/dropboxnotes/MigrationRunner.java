@@ -0,0 +1,223 @@
+package daniel.stanciu.dropboxnotes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Runs the slow parts of a database upgrade on a background thread, a batch
+ * at a time, so the first query after an app update only waits for the schema
+ * changes.
+ *
+ * The upgrade schedules a step by name in the migrations table. The runner
+ * works through the scheduled steps in the order it was given them, each
+ * batch in a transaction of its own that also records how far the step got,
+ * so a step killed along with the process resumes from its last batch the
+ * next time the provider starts. A step that fails is left for that next
+ * start too, from its last batch, and the steps after it still run.
+ */
+class MigrationRunner {
+	private static final String TAG = "MigrationRunner";
+
+	/**
+	 * The table of the scheduled steps and their progress. A step is removed
+	 * from it when it is done.
+	 */
+	static final String TABLE_NAME = "migrations";
+	static final String COLUMN_NAME_NAME = "name";
+	static final String COLUMN_NAME_POSITION = "position";
+
+	/**
+	 * The position of a step that is done, or was never scheduled
+	 */
+	static final long DONE = -1;
+
+	/**
+	 * Rows a step handles in one transaction
+	 */
+	private static final int BATCH_SIZE = 200;
+
+	/**
+	 * Pause between two batches, which lets the writes of the UI and of a sync
+	 * take the database in between
+	 */
+	private static final long BATCH_PAUSE_MILLIS = 50;
+
+	/**
+	 * A slow part of an upgrade. A step works through its rows in order of a
+	 * key and must give the same result if a batch runs again.
+	 */
+	interface Step {
+		String getName();
+
+		/**
+		 * Runs one batch, inside a transaction.
+		 *
+		 * @param position
+		 *            the key after which the batch starts, 0 for the first
+		 * @return the key of the last row handled, or {@link #DONE} if there
+		 *         are no rows left
+		 */
+		long runBatch(SQLiteDatabase db, long position, int batchSize);
+	}
+
+	private final Context mContext;
+	private final SQLiteOpenHelper mOpenHelper;
+	private final Step[] mSteps;
+	// steps to schedule again before running, guarded by this
+	private final ArrayList<String> mPending = new ArrayList<String>();
+	private Thread mThread;
+
+	MigrationRunner(Context context, SQLiteOpenHelper openHelper, Step... steps) {
+		mContext = context;
+		mOpenHelper = openHelper;
+		mSteps = steps;
+	}
+
+	/**
+	 * Creates the table of the scheduled steps, if there is none yet
+	 */
+	static void createTable(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " ("
+				+ COLUMN_NAME_NAME + " TEXT PRIMARY KEY,"
+				+ COLUMN_NAME_POSITION + " INTEGER NOT NULL DEFAULT 0);");
+	}
+
+	/**
+	 * Schedules a step to run from its first row, also if it was already
+	 * scheduled
+	 */
+	static void schedule(SQLiteDatabase db, String name) {
+		ContentValues values = new ContentValues();
+		values.put(COLUMN_NAME_NAME, name);
+		values.put(COLUMN_NAME_POSITION, 0);
+		db.replace(TABLE_NAME, null, values);
+	}
+
+	/**
+	 * Opens the database, which runs the schema upgrade if there is one, and
+	 * then runs the scheduled steps, on a background thread. If the steps are
+	 * still running, the given steps are run again once they are done.
+	 *
+	 * @param reschedule
+	 *            steps to run again from their first row, such as steps whose
+	 *            results depend on the locale after it changed
+	 */
+	synchronized void start(String... reschedule) {
+		Collections.addAll(mPending, reschedule);
+		if (mThread != null) {
+			return;
+		}
+		mThread = new Thread(TAG) {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				try {
+					do {
+						runSteps();
+					} while (!finishIfIdle());
+				} catch (RuntimeException e) {
+					// the steps start again from their last batch next time
+					Log.e(TAG, "Migration stopped", e);
+				} finally {
+					// a later start runs the steps again
+					synchronized (MigrationRunner.this) {
+						if (mThread == this) {
+							mThread = null;
+						}
+					}
+				}
+			}
+		};
+		mThread.start();
+	}
+
+	/**
+	 * Ends the thread of the runner, unless steps were rescheduled while it
+	 * was running
+	 */
+	private synchronized boolean finishIfIdle() {
+		if (mPending.isEmpty()) {
+			mThread = null;
+			return true;
+		}
+		return false;
+	}
+
+	private synchronized String[] takePending() {
+		String[] names = mPending.toArray(new String[mPending.size()]);
+		mPending.clear();
+		return names;
+	}
+
+	private void runSteps() {
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		for (String name : takePending()) {
+			schedule(db, name);
+		}
+		for (Step step : mSteps) {
+			long position = getPosition(db, step.getName());
+			if (position == DONE) {
+				continue;
+			}
+			try {
+				runStep(db, step, position);
+			} catch (RuntimeException e) {
+				// backs off until the next start, the batch that failed was
+				// rolled back
+				Log.e(TAG, "Step " + step.getName() + " failed", e);
+			}
+		}
+	}
+
+	private void runStep(SQLiteDatabase db, Step step, long position) {
+		Log.i(TAG, "Running " + step.getName() + " from " + position);
+		long start = SystemClock.uptimeMillis();
+		int batches = 0;
+		while (position != DONE) {
+			db.beginTransaction();
+			try {
+				position = step.runBatch(db, position, BATCH_SIZE);
+				setPosition(db, step.getName(), position);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+			batches++;
+			SystemClock.sleep(BATCH_PAUSE_MILLIS);
+		}
+		Log.i(TAG, "Finished " + step.getName() + " in " + batches + " batches, "
+				+ (SystemClock.uptimeMillis() - start) + " ms");
+		// the lists and searches showing the notes pick up the new data
+		mContext.getContentResolver().notifyChange(NotePad.Notes.CONTENT_URI, null);
+	}
+
+	private static long getPosition(SQLiteDatabase db, String name) {
+		Cursor c = db.query(TABLE_NAME, new String[] { COLUMN_NAME_POSITION },
+				COLUMN_NAME_NAME + " = ?", new String[] { name }, null, null, null);
+		try {
+			return c.moveToFirst() ? c.getLong(0) : DONE;
+		} finally {
+			c.close();
+		}
+	}
+
+	private static void setPosition(SQLiteDatabase db, String name, long position) {
+		String[] whereArgs = { name };
+		if (position == DONE) {
+			db.delete(TABLE_NAME, COLUMN_NAME_NAME + " = ?", whereArgs);
+		} else {
+			ContentValues values = new ContentValues();
+			values.put(COLUMN_NAME_POSITION, position);
+			db.update(TABLE_NAME, values, COLUMN_NAME_NAME + " = ?", whereArgs);
+		}
+	}
+}
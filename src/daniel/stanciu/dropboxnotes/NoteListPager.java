@@ -0,0 +1,227 @@
+package daniel.stanciu.dropboxnotes;
+
+import java.util.ArrayList;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.widget.AbsListView;
+import android.widget.CursorAdapter;
+
+/**
+ * Feeds a list of notes to a cursor adapter one page at a time, loading the
+ * next page as the user scrolls towards the end of the list.
+ *
+ * Pages are queried with the keyset URIs of {@link NotePad.Notes}: each page
+ * starts after the sort key and _ID of the last note of the previous one, so
+ * loading page 20 costs the same as loading page 1. The loaded pages are shown
+ * through one {@link MergeCursor}.
+ *
+ * When the notes change, the pager queries again as many notes as were
+ * loaded, so the list keeps its scroll position.
+ */
+class NoteListPager implements AbsListView.OnScrollListener {
+	/**
+	 * Notes per page, a few screens of the list
+	 */
+	static final int PAGE_SIZE = 50;
+
+	/**
+	 * How close to the end of the loaded notes the list can be scrolled
+	 * before the next page is loaded
+	 */
+	private static final int LOAD_AHEAD = 15;
+
+	private final ContentResolver mResolver;
+	private final CursorAdapter mAdapter;
+	private final String[] mColumns;
+	private final String mSelection;
+	private final ContentObserver mObserver;
+
+	private Uri mListUri;
+	private String mSort = NotePad.Notes.SORT_MODIFIED;
+	private String[] mProjection;
+	private final ArrayList<Cursor> mPages = new ArrayList<Cursor>();
+	private int mLoadedCount;
+	private String mLastKey;
+	private long mLastId = -1;
+	private boolean mHasMore;
+	private boolean mLoadPending;
+
+	/**
+	 * @param projection
+	 *            the columns of the notes, must include the _ID. The sort key
+	 *            is added by the pager.
+	 * @param selection
+	 *            the filter of the notes
+	 */
+	NoteListPager(ContentResolver resolver, CursorAdapter adapter, String[] projection, String selection) {
+		mResolver = resolver;
+		mAdapter = adapter;
+		mColumns = projection;
+		mProjection = withSortKey(projection, mSort);
+		mSelection = selection;
+		mObserver = new ContentObserver(new Handler()) {
+			@Override
+			public void onChange(boolean selfChange) {
+				reload();
+			}
+		};
+	}
+
+	/**
+	 * Shows the first page of another list of notes.
+	 *
+	 * @param listUri
+	 *            {@link NotePad.Notes#CONTENT_URI} or a folder name URI
+	 */
+	void setListUri(Uri listUri) {
+		if (mListUri != null) {
+			mResolver.unregisterContentObserver(mObserver);
+		}
+		mListUri = listUri;
+		mResolver.registerContentObserver(listUri, true, mObserver);
+		load(PAGE_SIZE);
+	}
+
+	/**
+	 * Shows the first page of the list in another sort mode.
+	 *
+	 * @param sort
+	 *            one of the sort modes of {@link NotePad.Notes}, such as
+	 *            {@link NotePad.Notes#SORT_TITLE}
+	 */
+	void setSort(String sort) {
+		mSort = sort;
+		mProjection = withSortKey(mColumns, sort);
+		if (mListUri != null) {
+			load(PAGE_SIZE);
+		}
+	}
+
+	/**
+	 * Queries the list again, up to the number of notes already loaded
+	 */
+	void reload() {
+		if (mListUri != null) {
+			load(Math.max(PAGE_SIZE, mLoadedCount));
+		}
+	}
+
+	/**
+	 * Appends the next page to the list, if there is one
+	 */
+	void loadNextPage() {
+		if (mListUri == null || !mHasMore) {
+			return;
+		}
+		Cursor page = queryPage(PAGE_SIZE);
+		if (page == null) {
+			return;
+		}
+		mPages.add(page);
+		// the pages stay open, only the merged view of them is replaced
+		mAdapter.swapCursor(new MergeCursor(mPages.toArray(new Cursor[mPages.size()])));
+	}
+
+	/**
+	 * Stops watching the notes and closes the loaded pages
+	 */
+	void close() {
+		if (mListUri != null) {
+			mResolver.unregisterContentObserver(mObserver);
+			mListUri = null;
+		}
+		mPages.clear();
+		mAdapter.changeCursor(null);
+	}
+
+	private void load(int limit) {
+		mLastKey = null;
+		mLastId = -1;
+		mLoadedCount = 0;
+		mHasMore = false;
+		Cursor page = queryPage(limit);
+		mPages.clear();
+		if (page != null) {
+			mPages.add(page);
+		}
+		// closes the old pages along with the old merged cursor
+		mAdapter.changeCursor(page == null ? null : new MergeCursor(new Cursor[] { page }));
+	}
+
+	/**
+	 * Queries the notes that follow the last loaded one and remembers the key
+	 * of the new last note
+	 */
+	private Cursor queryPage(int limit) {
+		Uri pageUri = NotePad.Notes.buildPageUri(mListUri, mSort, limit, mLastKey, mLastId);
+		Cursor page = mResolver.query(pageUri, mProjection, mSelection, null, null);
+		if (page == null) {
+			return null;
+		}
+		int count = page.getCount();
+		mLoadedCount += count;
+		mHasMore = count == limit;
+		if (page.moveToLast()) {
+			int keyIndex = page.getColumnIndexOrThrow(NotePad.Notes.getSortKeyColumn(mSort));
+			if (NotePad.Notes.SORT_TITLE.equals(mSort)) {
+				// the title keys of an upgraded database are computed in the background
+				mLastKey = page.isNull(keyIndex) ? null : toHex(page.getBlob(keyIndex));
+			} else {
+				mLastKey = Long.toString(page.getLong(keyIndex));
+			}
+			mLastId = page.getLong(page.getColumnIndexOrThrow(NotePad.Notes._ID));
+		}
+		page.moveToPosition(-1);
+		return page;
+	}
+
+	/**
+	 * Returns the columns with the sort key of a sort mode added, if they do
+	 * not have it
+	 */
+	private static String[] withSortKey(String[] columns, String sort) {
+		String key = NotePad.Notes.getSortKeyColumn(sort);
+		for (String column : columns) {
+			if (column.equals(key)) {
+				return columns;
+			}
+		}
+		String[] projection = new String[columns.length + 1];
+		System.arraycopy(columns, 0, projection, 0, columns.length);
+		projection[columns.length] = key;
+		return projection;
+	}
+
+	private static String toHex(byte[] key) {
+		StringBuilder hex = new StringBuilder(key.length * 2);
+		for (byte b : key) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	@Override
+	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+		if (!mHasMore || mLoadPending || firstVisibleItem + visibleItemCount < totalItemCount - LOAD_AHEAD) {
+			return;
+		}
+		// the adapter must not change while the list is laying out its children
+		mLoadPending = true;
+		view.post(new Runnable() {
+			@Override
+			public void run() {
+				mLoadPending = false;
+				loadNextPage();
+			}
+		});
+	}
+
+	@Override
+	public void onScrollStateChanged(AbsListView view, int scrollState) {
+	}
+}
@@ -28,6 +28,139 @@ import android.provider.BaseColumns;
 public final class NotePad {
     public static final String AUTHORITY = "daniel.stanciu.dropboxnotes.DropboxNotes";
 
+    /**
+     * Provider method, see {@link android.content.ContentResolver#call}, that
+     * runs a passive checkpoint of the write-ahead log. Meant to be called when
+     * a burst of writes, such as a sync, is over.
+     */
+    public static final String METHOD_CHECKPOINT = "checkpoint";
+
+    /**
+     * Provider method that returns how long queries waited for their results,
+     * under {@link #KEY_READER_QUERIES}, {@link #KEY_READER_WAIT_TOTAL_MILLIS}
+     * and {@link #KEY_READER_WAIT_MAX_MILLIS}. Passing {@link #ARG_RESET} as
+     * the argument starts a new measurement.
+     */
+    public static final String METHOD_READER_STATS = "reader_stats";
+
+    /**
+     * Provider method that starts a batch of writes. Until the matching
+     * {@link #METHOD_END_BATCH}, change notifications are merged and sent at
+     * most about once a second instead of once per write. Batches nest.
+     */
+    public static final String METHOD_BEGIN_BATCH = "begin_batch";
+
+    /**
+     * Provider method that ends a batch started by {@link #METHOD_BEGIN_BATCH}
+     * and sends the notifications still pending
+     */
+    public static final String METHOD_END_BATCH = "end_batch";
+
+    /**
+     * Provider method that compacts the deleted notes: it strips the content
+     * left in deleted notes, purges the deleted notes that have nothing left
+     * to delete in Dropbox or were deleted more than
+     * {@link #TOMBSTONE_MAX_AGE_MILLIS} ago, and returns the freed pages to
+     * the file system. It also truncates the oldest rows of the change log,
+     * see {@link Changes}. Returns {@link #KEY_COMPACT_STRIPPED},
+     * {@link #KEY_COMPACT_PURGED} and {@link #KEY_COMPACT_FREED_PAGES}.
+     * Slow, must not be called from the UI thread.
+     */
+    public static final String METHOD_COMPACT = "compact";
+
+    /**
+     * MIME type of an archive of notes: UTF-8 text with one JSON object per
+     * line and note, holding the {@link Notes#COLUMN_NAME_TITLE},
+     * {@link Notes#COLUMN_NAME_NOTE}, {@link Notes#COLUMN_NAME_FOLDER},
+     * {@link Notes#COLUMN_NAME_CREATE_DATE} and
+     * {@link Notes#COLUMN_NAME_MODIFICATION_DATE} of the note under the names
+     * of the columns. Opening {@link Notes#CONTENT_URI} or a folder URI as a
+     * stream of this type exports the notes that are not deleted, written as
+     * they are read, so the size of the archive is not limited by memory.
+     */
+    public static final String ARCHIVE_MIME_TYPE = "application/x-jsonlines";
+
+    /**
+     * Provider method that imports the notes of an archive, see
+     * {@link #ARCHIVE_MIME_TYPE}, as new notes. The argument is the URI of the
+     * archive, which the provider opens twice with
+     * {@link android.content.ContentResolver#openInputStream}: it checks every
+     * line first, so an archive with a bad line imports nothing and throws an
+     * IllegalArgumentException. The notes are then inserted in transactions of
+     * a few hundred notes; if one fails, the IllegalStateException thrown names
+     * the number of notes imported by the earlier ones. Returns
+     * {@link #KEY_IMPORTED}. Slow, must not be called from the UI thread.
+     */
+    public static final String METHOD_IMPORT = "import";
+
+    /**
+     * Number of notes imported by {@link #METHOD_IMPORT}
+     */
+    public static final String KEY_IMPORTED = "imported";
+
+    /**
+     * How long a deleted note waits for a sync to delete its Dropbox file
+     * before it is purged anyway. If the file is still in Dropbox by then,
+     * the next sync downloads it again as a new note.
+     */
+    public static final long TOMBSTONE_MAX_AGE_MILLIS = 60L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Number of deleted notes whose content was stripped by a compaction
+     */
+    public static final String KEY_COMPACT_STRIPPED = "compact_stripped";
+
+    /**
+     * Number of deleted notes purged by a compaction
+     */
+    public static final String KEY_COMPACT_PURGED = "compact_purged";
+
+    /**
+     * Number of database pages a compaction returned to the file system
+     */
+    public static final String KEY_COMPACT_FREED_PAGES = "compact_freed_pages";
+
+    /**
+     * Provider method that sets the duration, in milliseconds, above which an
+     * operation goes to {@link Diagnostics#SLOW_URI}. The argument is the
+     * number of milliseconds.
+     */
+    public static final String METHOD_SET_SLOW_THRESHOLD = "set_slow_threshold";
+
+    /**
+     * Provider method that sets the length, in characters, above which the
+     * content of a note is stored compressed, 0 to store new content
+     * uncompressed. The argument is the number of characters. Stored content
+     * longer than the new threshold is compressed in the background;
+     * compressed content stays compressed.
+     */
+    public static final String METHOD_SET_COMPRESSION_THRESHOLD = "set_compression_threshold";
+
+    /**
+     * Provider method that clears the statistics of {@link Diagnostics}
+     */
+    public static final String METHOD_RESET_DIAGNOSTICS = "reset_diagnostics";
+
+    /**
+     * Argument of {@link #METHOD_READER_STATS} that resets the counters
+     */
+    public static final String ARG_RESET = "reset";
+
+    /**
+     * Number of queries measured
+     */
+    public static final String KEY_READER_QUERIES = "reader_queries";
+
+    /**
+     * Total time the measured queries took until their first rows were ready
+     */
+    public static final String KEY_READER_WAIT_TOTAL_MILLIS = "reader_wait_total_ms";
+
+    /**
+     * Longest time a measured query took until its first rows were ready
+     */
+    public static final String KEY_READER_WAIT_MAX_MILLIS = "reader_wait_max_ms";
+
     // This class cannot be instantiated
     private NotePad() {
     }
@@ -45,6 +178,11 @@ public final class NotePad {
          */
         public static final String TABLE_NAME = "notes";
 
+        /**
+         * The name of the table holding the folders and their note counts
+         */
+        public static final String FOLDERS_TABLE_NAME = "folders";
+
         /*
          * URI definitions
          */
@@ -73,6 +211,62 @@ public final class NotePad {
          */
         public static final int NOTE_ID_PATH_POSITION = 1;
         
+        /**
+         * Query parameter of a note ID URI that makes an update or a delete
+         * conditional: it is only applied if {@link #COLUMN_NAME_VERSION} still
+         * has the given value. See {@link #withExpectedVersion(Uri, long)}.
+         */
+        public static final String PARAM_EXPECTED_VERSION = "expected_version";
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} and of folder name URIs that
+         * limits the result to a page of at most that many notes. Pages are
+         * ordered by the sort mode given by {@link #PARAM_SORT}; the next page
+         * starts after the note given by {@link #PARAM_AFTER_KEY} and
+         * {@link #PARAM_AFTER_ID}. See
+         * {@link #buildPageUri(Uri, String, int, String, long)}.
+         */
+        public static final String PARAM_LIMIT = "limit";
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} and of folder name URIs that
+         * orders the notes by one of {@link #SORT_MODIFIED}, {@link #SORT_CREATED}
+         * or {@link #SORT_TITLE}. Every sort mode is served by indexes, so it
+         * costs no sorting at query time. Pages without it are sorted by
+         * {@link #SORT_MODIFIED}.
+         */
+        public static final String PARAM_SORT = "sort";
+
+        /**
+         * Sort mode of the most recently modified notes first
+         */
+        public static final String SORT_MODIFIED = "modified";
+
+        /**
+         * Sort mode of the most recently created notes first
+         */
+        public static final String SORT_CREATED = "created";
+
+        /**
+         * Sort mode of the notes by title, in the order of the locale of the
+         * device, see {@link #COLUMN_NAME_TITLE_KEY}
+         */
+        public static final String SORT_TITLE = "title";
+
+        /**
+         * Query parameter of a page URI: the sort key of the last note of the
+         * previous page, see {@link #getSortKeyColumn(String)}. Dates are given
+         * in decimal, title keys in hexadecimal. It is left out after a note
+         * whose title key is not computed yet, which sorts before the others.
+         */
+        public static final String PARAM_AFTER_KEY = "after_key";
+
+        /**
+         * Query parameter of a page URI: the _ID of the last note of the
+         * previous page
+         */
+        public static final String PARAM_AFTER_ID = "after_id";
+
         /**
          * The content:// style URL for this table
          */
@@ -126,6 +320,34 @@ public final class NotePad {
         public static final Uri FOLDER_NAME_URI_PATTERN
             = Uri.parse(SCHEME + AUTHORITY + PATH_FOLDER_NAME + "/*");
 
+        /**
+         * Path part for the Search URI
+         */
+        private static final String PATH_SEARCH = "/search";
+
+        /**
+         * The content:// style URL for full-text search over the titles and
+         * contents of the notes that are not deleted. The search terms are given
+         * by the {@link #PARAM_SEARCH_QUERY} query parameter, using the SQLite
+         * FTS query syntax. Results are ordered by {@link #COLUMN_NAME_RANK}.
+         */
+        public static final Uri SEARCH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * Query parameter of {@link #SEARCH_URI} holding the search terms
+         */
+        public static final String PARAM_SEARCH_QUERY = "q";
+
+        /**
+         * Marks the start of a matching term in {@link #COLUMN_NAME_SNIPPET}
+         */
+        public static final String SNIPPET_MATCH_START = "<b>";
+
+        /**
+         * Marks the end of a matching term in {@link #COLUMN_NAME_SNIPPET}
+         */
+        public static final String SNIPPET_MATCH_END = "</b>";
+
         /*
          * MIME type definitions
          */
@@ -151,6 +373,11 @@ public final class NotePad {
          */
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
 
+        /**
+         * The default sort order for {@link #FOLDERS_URI}
+         */
+        public static final String DEFAULT_FOLDERS_SORT_ORDER = "folder ASC";
+
         /*
          * Column definitions
          */
@@ -181,8 +408,468 @@ public final class NotePad {
         
         public static final String COLUMN_NAME_DELETED = "deleted";
 
+		/**
+		 * Column name for the time the note was deleted, set by the provider
+		 * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+		 */
+		public static final String COLUMN_NAME_DELETED_AT = "deleted_at";
+
 		public static final String COLUMN_NAME_FILE_NAME = "filename";
 
 		public static final String COLUMN_NAME_FOLDER = "folder";
+
+		/**
+		 * Column name for the row version, incremented by the provider on every
+		 * update of the note
+		 * <P>Type: INTEGER</P>
+		 */
+		public static final String COLUMN_NAME_VERSION = "version";
+
+		/**
+		 * Column name for the Dropbox revision of the note file at the last sync
+		 * <P>Type: TEXT</P>
+		 */
+		public static final String COLUMN_NAME_REV = "rev";
+
+		/**
+		 * Column name for the content of the note file at the last sync, the title
+		 * line followed by the note. Used as the base of three-way merges.
+		 * <P>Type: TEXT</P>
+		 */
+		public static final String COLUMN_NAME_BASE = "base";
+
+		/**
+		 * Column name for the collation key of the title in the locale of the
+		 * device, set by the provider. Ordering the keys as bytes orders the
+		 * titles alphabetically.
+		 * <P>Type: BLOB</P>
+		 */
+		public static final String COLUMN_NAME_TITLE_KEY = "title_key";
+
+		/**
+		 * Column name for the start of the content of the note, at most
+		 * {@link #PREVIEW_LENGTH} characters with each run of whitespace,
+		 * line breaks included, turned into a single space. Set by the
+		 * provider whenever the content is written, so a list can show it
+		 * without reading the content.
+		 * <P>Type: TEXT</P>
+		 */
+		public static final String COLUMN_NAME_PREVIEW = "preview";
+
+		/**
+		 * The maximum length of {@link #COLUMN_NAME_PREVIEW}, in characters
+		 */
+		public static final int PREVIEW_LENGTH = 100;
+
+		/**
+		 * Column name of search results for an excerpt of the note around the
+		 * matching terms, which are marked by {@link #SNIPPET_MATCH_START} and
+		 * {@link #SNIPPET_MATCH_END}
+		 * <P>Type: TEXT</P>
+		 */
+		public static final String COLUMN_NAME_SNIPPET = "snippet";
+
+		/**
+		 * Column name of search results for the relevance of the note, higher
+		 * is better. Matches in the title count more than matches in the note.
+		 * <P>Type: INTEGER</P>
+		 */
+		public static final String COLUMN_NAME_RANK = "rank";
+
+		/**
+		 * Column name of {@link #FOLDERS_URI} for the number of notes in the
+		 * folder that are not deleted
+		 * <P>Type: INTEGER</P>
+		 */
+		public static final String COLUMN_NAME_LIVE_COUNT = "live_count";
+
+		/**
+		 * Column name of {@link #FOLDERS_URI} for the number of deleted notes
+		 * in the folder that still wait for the sync to remove them
+		 * <P>Type: INTEGER</P>
+		 */
+		public static final String COLUMN_NAME_DELETED_COUNT = "deleted_count";
+
+		/**
+		 * Returns the column a sort mode orders the notes by, which is also the
+		 * key of its pages
+		 *
+		 * @throws IllegalArgumentException
+		 *             if the sort mode is not known
+		 */
+		public static String getSortKeyColumn(String sort) {
+			if (SORT_MODIFIED.equals(sort)) {
+				return COLUMN_NAME_MODIFICATION_DATE;
+			}
+			if (SORT_CREATED.equals(sort)) {
+				return COLUMN_NAME_CREATE_DATE;
+			}
+			if (SORT_TITLE.equals(sort)) {
+				return COLUMN_NAME_TITLE_KEY;
+			}
+			throw new IllegalArgumentException("Unknown sort " + sort);
+		}
+
+		/**
+		 * Returns true if a sort mode is ascending. Titles are sorted from A
+		 * to Z, dates from the newest.
+		 */
+		public static boolean isAscending(String sort) {
+			return SORT_TITLE.equals(sort);
+		}
+
+		/**
+		 * Returns the sort order of a sort mode. The _ID breaks ties between
+		 * notes with the same key, so every note has a unique position.
+		 */
+		public static String getSortOrder(String sort) {
+			String direction = isAscending(sort) ? " ASC" : " DESC";
+			return getSortKeyColumn(sort) + direction + ", " + _ID + direction;
+		}
+
+		/**
+		 * Builds the URI of a page of notes.
+		 *
+		 * @param listUri
+		 *            {@link #CONTENT_URI} or a folder name URI
+		 * @param sort
+		 *            the sort mode, such as {@link #SORT_MODIFIED}
+		 * @param limit
+		 *            the maximum number of notes of the page
+		 * @param afterKey
+		 *            the sort key of the last note of the previous page,
+		 *            ignored for the first page, or null if the note has no
+		 *            title key yet
+		 * @param afterId
+		 *            the _ID of the last note of the previous page, or -1 for
+		 *            the first page
+		 */
+		public static Uri buildPageUri(Uri listUri, String sort, int limit, String afterKey, long afterId) {
+			Uri.Builder builder = listUri.buildUpon()
+					.appendQueryParameter(PARAM_SORT, sort)
+					.appendQueryParameter(PARAM_LIMIT, Integer.toString(limit));
+			if (afterId >= 0) {
+				if (afterKey != null) {
+					builder.appendQueryParameter(PARAM_AFTER_KEY, afterKey);
+				}
+				builder.appendQueryParameter(PARAM_AFTER_ID, Long.toString(afterId));
+			}
+			return builder.build();
+		}
+
+		/**
+		 * Builds a note ID URI whose updates only apply while the note still has
+		 * the given version. An update through such a URI that affects no rows
+		 * means the note was changed in the meantime.
+		 */
+		public static Uri withExpectedVersion(Uri noteUri, long version) {
+			return noteUri.buildUpon()
+					.appendQueryParameter(PARAM_EXPECTED_VERSION, Long.toString(version))
+					.build();
+		}
+    }
+
+    /**
+     * Diagnostics contract: latency and volume of the provider operations
+     * since the process started or {@link NotePad#METHOD_RESET_DIAGNOSTICS}.
+     * Read only; the queries of these URIs are not measured themselves.
+     */
+    public static final class Diagnostics implements BaseColumns {
+
+        // This class cannot be instantiated
+        private Diagnostics() {}
+
+        /**
+         * One row per operation and kind of URI, such as an update of a note
+         * ID URI. Latencies are in milliseconds; the percentiles are the upper
+         * bounds of power of two buckets.
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/diagnostics");
+
+        /**
+         * The latest operations that took longer than the slow threshold,
+         * oldest first. See {@link NotePad#METHOD_SET_SLOW_THRESHOLD}.
+         */
+        public static final Uri SLOW_URI = Uri.parse("content://" + AUTHORITY + "/diagnostics/slow");
+
+        /**
+         * The MIME type of {@link #CONTENT_URI} and {@link #SLOW_URI}
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.daniel.stanciu.dropboxnotes.diagnostics";
+
+        /**
+         * Column name for the operation: query, insert, update or delete
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_OPERATION = "operation";
+
+        /**
+         * Column name for the kind of URI, such as notes, note_id or folders
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_URI = "uri";
+
+        /**
+         * Column name of {@link #CONTENT_URI} for the number of operations
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_COUNT = "count";
+
+        /**
+         * Column name of {@link #CONTENT_URI} for the total duration
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_TOTAL_MILLIS = "total_ms";
+
+        /**
+         * Column name of {@link #CONTENT_URI} for the longest duration
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_MAX_MILLIS = "max_ms";
+
+        /**
+         * Column name of {@link #CONTENT_URI} for the median duration
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_P50_MILLIS = "p50_ms";
+
+        /**
+         * Column name of {@link #CONTENT_URI} for the 90th percentile duration
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_P90_MILLIS = "p90_ms";
+
+        /**
+         * Column name of {@link #CONTENT_URI} for the 99th percentile duration
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_P99_MILLIS = "p99_ms";
+
+        /**
+         * Column name for the rows returned by queries, or changed by writes
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_ROWS = "rows";
+
+        /**
+         * Column name of {@link #CONTENT_URI} for the bytes of text and blobs
+         * written, or read by the callers of queries from their cursors
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_BYTES = "bytes";
+
+        /**
+         * Column name of {@link #CONTENT_URI} for the latency histogram, such
+         * as "&lt;=1:40 &lt;=2:3 &gt;1024:1": the operations that took at most
+         * 1 ms, 2 ms, and more than 1024 ms
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_HISTOGRAM = "histogram";
+
+        /**
+         * Column name of {@link #SLOW_URI} for the time the operation ended
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_TIME = "time";
+
+        /**
+         * Column name of {@link #SLOW_URI} for the duration of the operation
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_MILLIS = "ms";
+
+        /**
+         * Column name of {@link #SLOW_URI} for the URI and selection of the
+         * operation
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_DETAIL = "detail";
+    }
+
+    /**
+     * Change log contract. Every insert, update, move or delete of a note
+     * appends a row with a new sequence number, the {@link #_ID}, which only
+     * grows. A consumer keeps the last sequence number it processed and reads
+     * the rows that follow it with {@link #buildSinceUri(long)}.
+     *
+     * The oldest rows are truncated from time to time. If the first row
+     * returned is not the one right after the checkpoint, the consumer missed
+     * changes and has to read the notes again. One write can log more than
+     * one row for the same note, so rows must be applied idempotently.
+     * {@link Notes#PARAM_LIMIT} limits how many rows a query returns.
+     */
+    public static final class Changes implements BaseColumns {
+
+        // This class cannot be instantiated
+        private Changes() {}
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "changes";
+
+        /**
+         * The content:// style URL for the change log
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/changes");
+
+        /**
+         * Query parameter of {@link #CONTENT_URI}: only the rows with a greater
+         * sequence number are returned
+         */
+        public static final String PARAM_SINCE = "since";
+
+        /**
+         * The MIME type of {@link #CONTENT_URI}
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.daniel.stanciu.dropboxnotes.change";
+
+        /**
+         * The sort order of the change log, oldest first
+         */
+        public static final String DEFAULT_SORT_ORDER = "_id ASC";
+
+        /**
+         * Column name for the _ID of the note that changed
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+        /**
+         * Column name for the kind of change, one of {@link #OP_INSERT},
+         * {@link #OP_UPDATE}, {@link #OP_MOVE} and {@link #OP_DELETE}
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_OP = "op";
+
+        /**
+         * Column name for the folder of the note after the change
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_FOLDER = "folder";
+
+        /**
+         * Column name for the folder of the note before a move, null for other
+         * changes
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_OLD_FOLDER = "old_folder";
+
+        /**
+         * Column name for the time of the change
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_TIME = "time";
+
+        /**
+         * A note was created
+         */
+        public static final String OP_INSERT = "insert";
+
+        /**
+         * The title, content or sync state of a note changed
+         */
+        public static final String OP_UPDATE = "update";
+
+        /**
+         * A note moved to another folder
+         */
+        public static final String OP_MOVE = "move";
+
+        /**
+         * A note was deleted. Changes of deleted notes are not logged.
+         */
+        public static final String OP_DELETE = "delete";
+
+        /**
+         * Builds the URI of the changes that follow a sequence number; 0 for
+         * the whole log.
+         */
+        public static Uri buildSinceUri(long since) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(PARAM_SINCE, Long.toString(since))
+                    .build();
+        }
+    }
+
+    /**
+     * Revision history contract. Whenever the content of a note is replaced,
+     * by the editor or by a sync, the text it had before is kept as a
+     * revision, newest first under {@link #buildRevisionsUri(Uri)}. Each note
+     * keeps its latest revisions, within a limit of count and size. Revisions
+     * are read only; they go away with their note.
+     */
+    public static final class Revisions implements BaseColumns {
+
+        // This class cannot be instantiated
+        private Revisions() {}
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "revisions";
+
+        /**
+         * Path segment of the revisions of a note, after the note ID URI
+         */
+        public static final String PATH_REVISIONS = "revisions";
+
+        /**
+         * The MIME type of {@link #buildRevisionsUri(Uri)}
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.daniel.stanciu.dropboxnotes.revision";
+
+        /**
+         * The MIME type of a single revision
+         */
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.daniel.stanciu.dropboxnotes.revision";
+
+        /**
+         * 0-relative position of the revision ID segment in the path of a
+         * single revision
+         */
+        public static final int REVISION_ID_PATH_POSITION = 3;
+
+        /**
+         * Column name for the _ID of the note
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+        /**
+         * Column name for the title the note had
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_TITLE = "title";
+
+        /**
+         * Column name for the content the note had. Only stored in full every
+         * few revisions, so reading it costs more than the other columns.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NOTE = "note";
+
+        /**
+         * Column name for the time the content was saved
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_MODIFICATION_DATE = "modified";
+
+        /**
+         * Builds the URI of the revisions of a note.
+         *
+         * @param noteUri
+         *            the note ID URI of the note
+         */
+        public static Uri buildRevisionsUri(Uri noteUri) {
+            return Uri.withAppendedPath(noteUri, PATH_REVISIONS);
+        }
+
+        /**
+         * Builds the URI of one revision of a note
+         */
+        public static Uri buildRevisionUri(Uri noteUri, long revisionId) {
+            return Uri.withAppendedPath(buildRevisionsUri(noteUri), Long.toString(revisionId));
+        }
     }
 }
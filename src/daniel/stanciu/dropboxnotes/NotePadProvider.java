@@ -18,32 +18,65 @@ package daniel.stanciu.dropboxnotes;
 
 import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -62,7 +95,234 @@ public class NotePadProvider extends ContentProvider implements
 	/**
 	 * The database version
 	 */
-	private static final int DATABASE_VERSION = 5;
+	private static final int DATABASE_VERSION = 20;
+
+	/**
+	 * The table linking each note to its content, one row per note, keyed by
+	 * the _ID of the note. Keeping the content out of the notes table keeps
+	 * its rows small, so the list, folder and sync queries read the same
+	 * pages however long the notes are. The merge base of the sync, a copy of
+	 * the whole note file, is kept here for the same reason.
+	 */
+	private static final String BODIES_TABLE_NAME = "note_bodies";
+
+	/**
+	 * The _ID of the note a body belongs to. It is not named _id, so the
+	 * columns of the notes keep their names when the bodies are joined.
+	 */
+	private static final String BODIES_COLUMN_NAME_NOTE_ID = "note_id";
+
+	/**
+	 * The hash of the content of the note, see {@link #hashContent(String)},
+	 * or null while the content is still in the body
+	 */
+	private static final String BODIES_COLUMN_NAME_HASH = "content_hash";
+
+	/**
+	 * The content of a note that an upgrade left in its body. A background
+	 * step moves it to the contents table a batch at a time, and until then
+	 * the notes are read from here.
+	 */
+	private static final String BODIES_COLUMN_NAME_NOTE = "note";
+
+	/**
+	 * The table holding the content of the notes, one row per distinct
+	 * content, keyed by its hash. Notes with the same content, such as
+	 * copies, conflicted copies and the empty content of the tombstones,
+	 * share a row, which counts the notes referring to it and is deleted
+	 * along with the last of them.
+	 */
+	private static final String CONTENTS_TABLE_NAME = "contents";
+	private static final String CONTENTS_COLUMN_NAME_HASH = "hash";
+	private static final String CONTENTS_COLUMN_NAME_REFS = "refs";
+
+	/**
+	 * The hash of the empty content
+	 */
+	private static final String EMPTY_CONTENT_HASH = hashContent("");
+
+	/**
+	 * The tables of a notes query that reads the content of the notes
+	 */
+	private static final String NOTES_WITH_BODIES_TABLES = NotePad.Notes.TABLE_NAME
+			+ " LEFT OUTER JOIN " + BODIES_TABLE_NAME + " ON ("
+			+ BODIES_TABLE_NAME + "." + BODIES_COLUMN_NAME_NOTE_ID + " = "
+			+ NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + ")"
+			+ " LEFT OUTER JOIN " + CONTENTS_TABLE_NAME + " ON ("
+			+ CONTENTS_TABLE_NAME + "." + CONTENTS_COLUMN_NAME_HASH + " = "
+			+ BODIES_TABLE_NAME + "." + BODIES_COLUMN_NAME_HASH + ")";
+
+	/**
+	 * The content of a note in {@link #NOTES_WITH_BODIES_TABLES}
+	 */
+	private static final String NOTES_WITH_BODIES_CONTENT = "coalesce("
+			+ CONTENTS_TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE + ", "
+			+ BODIES_TABLE_NAME + "." + BODIES_COLUMN_NAME_NOTE + ")";
+
+	/**
+	 * Joins the body b and the content c to the notes n of a query, for
+	 * {@link #JOINED_CONTENT}
+	 */
+	private static final String NOTE_CONTENT_JOIN = " LEFT OUTER JOIN "
+			+ BODIES_TABLE_NAME + " b ON b." + BODIES_COLUMN_NAME_NOTE_ID + " = n."
+			+ NotePad.Notes._ID + " LEFT OUTER JOIN " + CONTENTS_TABLE_NAME
+			+ " c ON c." + CONTENTS_COLUMN_NAME_HASH + " = b." + BODIES_COLUMN_NAME_HASH;
+
+	/**
+	 * The content of a note in {@link #NOTE_CONTENT_JOIN}
+	 */
+	private static final String JOINED_CONTENT = "coalesce(c."
+			+ NotePad.Notes.COLUMN_NAME_NOTE + ", b." + BODIES_COLUMN_NAME_NOTE + ")";
+
+	/**
+	 * The {@link #JOINED_CONTENT} as the search index takes it, null if it is
+	 * compressed
+	 */
+	private static final String INDEXED_CONTENT = "CASE WHEN typeof("
+			+ JOINED_CONTENT + ") = 'text' THEN " + JOINED_CONTENT + " END";
+
+	/**
+	 * Streams of notes longer than this many characters are read from a file,
+	 * instead of being written to a pipe by a thread of their own. The file is
+	 * written the first time a version of the note is opened, so saving a note
+	 * never writes it.
+	 */
+	private static final int STREAM_FILE_THRESHOLD_CHARS = 32 * 1024;
+
+	/**
+	 * Directory of the stream files, under the files directory of the app.
+	 * Each file is named after the _ID and the version of its note, so a file
+	 * written before the note changed is never served.
+	 */
+	private static final String STREAM_DIR_NAME = "streams";
+	private static final String STREAM_FILE_SUFFIX = ".txt";
+
+	/**
+	 * A title key of a page URI, an even number of hexadecimal digits
+	 */
+	private static final Pattern HEX_KEY_PATTERN = Pattern.compile("([0-9a-fA-F]{2})*");
+
+	/**
+	 * Finds the content or merge base column in a selection or sort order
+	 */
+	private static final Pattern BODY_COLUMN_PATTERN = Pattern.compile("\\b("
+			+ NotePad.Notes.COLUMN_NAME_NOTE + "|"
+			+ NotePad.Notes.COLUMN_NAME_BASE + ")\\b");
+
+	/**
+	 * Index serving the list of all notes: live notes by modification date,
+	 * covering the columns the list shows
+	 */
+	private static final String INDEX_LIVE_MODIFIED = "notes_live_modified";
+
+	/**
+	 * Index serving folder lists, the list of folders and the list of notes
+	 * of a folder
+	 */
+	private static final String INDEX_FOLDER_DELETED_MODIFIED = "notes_folder_deleted_modified";
+
+	/**
+	 * Indexes serving the lists sorted by creation date and by title, like
+	 * the two above
+	 */
+	private static final String INDEX_LIVE_CREATED = "notes_live_created";
+	private static final String INDEX_FOLDER_DELETED_CREATED = "notes_folder_deleted_created";
+	private static final String INDEX_LIVE_TITLE_KEY = "notes_live_title_key";
+	private static final String INDEX_FOLDER_DELETED_TITLE_KEY = "notes_folder_deleted_title_key";
+
+	/**
+	 * The preferences of the provider
+	 */
+	private static final String PREFS_NAME = "NotePadProvider";
+
+	/**
+	 * Preference holding the locale the title keys were computed in
+	 */
+	private static final String TITLE_KEY_LOCALE_NAME = "TITLE_KEY_LOCALE";
+
+	/**
+	 * Preference holding the compression threshold, see
+	 * {@link NotePad#METHOD_SET_COMPRESSION_THRESHOLD}
+	 */
+	private static final String COMPRESS_THRESHOLD_NAME = "COMPRESS_THRESHOLD";
+
+	// Length above which a content is stored compressed, 0 for never
+	private static volatile int sCompressThresholdChars = ContentCodec.DEFAULT_THRESHOLD_CHARS;
+
+	// Compares titles in the locale of the device, guarded by the lock
+	private static final Object sTitleKeyLock = new Object();
+	private static Collator sTitleCollator;
+	private static Locale sTitleCollatorLocale;
+
+	/**
+	 * The current time in milliseconds, in SQL
+	 */
+	private static final String NOW_MILLIS_SQL = "CAST(strftime('%s', 'now') AS INTEGER) * 1000";
+
+	/**
+	 * Rows of the change log kept by a compaction
+	 */
+	private static final int CHANGES_MAX_ROWS = 5000;
+
+	/**
+	 * Shortest time between two deliveries of merged notifications during a
+	 * batch
+	 */
+	private static final long BATCH_NOTIFY_INTERVAL_MILLIS = 1000;
+
+	/**
+	 * Size of the write-ahead log, in pages, at which a commit checkpoints it.
+	 * Kept below the SQLite default, since a long log slows down every reader.
+	 */
+	private static final int WAL_AUTOCHECKPOINT_PAGES = 500;
+
+	/**
+	 * Size the write-ahead log file is truncated to after a checkpoint
+	 */
+	private static final long JOURNAL_SIZE_LIMIT_BYTES = 512 * 1024;
+
+	/**
+	 * Full-text index over the title and content of the notes that are not
+	 * deleted. Its docid is the _ID of the note.
+	 */
+	private static final String FTS_TABLE_NAME = "notes_fts";
+
+	/**
+	 * How many matches in the note content a match in the title is worth
+	 */
+	private static final int TITLE_MATCH_WEIGHT = 4;
+
+	/**
+	 * Words of context around the matching terms in a search snippet
+	 */
+	private static final int SNIPPET_TOKENS = 12;
+
+	/**
+	 * The columns a search returns, in the order of SEARCH_SQL, followed by
+	 * the rank computed from its offsets
+	 */
+	private static final String[] SEARCH_COLUMNS = new String[] {
+			NotePad.Notes._ID,
+			NotePad.Notes.COLUMN_NAME_TITLE,
+			NotePad.Notes.COLUMN_NAME_FOLDER,
+			NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+			NotePad.Notes.COLUMN_NAME_SNIPPET,
+			NotePad.Notes.COLUMN_NAME_RANK
+	};
+	private static final int SEARCH_MODIFIED_INDEX = 3;
+	private static final int SEARCH_RANK_INDEX = 5;
+
+	private static final String SEARCH_SQL = "SELECT n." + NotePad.Notes._ID
+			+ ", n." + NotePad.Notes.COLUMN_NAME_TITLE
+			+ ", n." + NotePad.Notes.COLUMN_NAME_FOLDER
+			+ ", n." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+			+ ", snippet(" + FTS_TABLE_NAME + ", '" + NotePad.Notes.SNIPPET_MATCH_START
+			+ "', '" + NotePad.Notes.SNIPPET_MATCH_END + "', '...', -1, " + SNIPPET_TOKENS + ")"
+			+ ", offsets(" + FTS_TABLE_NAME + ")"
+			+ " FROM " + FTS_TABLE_NAME + " JOIN " + NotePad.Notes.TABLE_NAME
+			+ " n ON n." + NotePad.Notes._ID + " = " + FTS_TABLE_NAME + ".docid"
+			+ " WHERE " + FTS_TABLE_NAME + " MATCH ? AND n."
+			+ NotePad.Notes.COLUMN_NAME_DELETED + " = 0";
 
 	/**
 	 * A projection map used to select columns from the database
@@ -74,6 +334,11 @@ public class NotePadProvider extends ContentProvider implements
 	 */
 	private static HashMap<String, String> sFoldersProjectionMap;
 
+	/**
+	 * A projection map used to select changes from the database
+	 */
+	private static HashMap<String, String> sChangesProjectionMap;
+
 	/**
 	 * Standard projection for the interesting columns of a normal note.
 	 */
@@ -87,6 +352,24 @@ public class NotePadProvider extends ContentProvider implements
 	private static final int READ_NOTE_NOTE_INDEX = 1;
 	private static final int READ_NOTE_TITLE_INDEX = 2;
 
+	/**
+	 * The columns of a note in an archive, after its _ID, which orders the
+	 * archive
+	 */
+	private static final String[] ARCHIVE_COLUMNS = new String[] {
+			NotePad.Notes.COLUMN_NAME_TITLE,
+			NotePad.Notes.COLUMN_NAME_NOTE,
+			NotePad.Notes.COLUMN_NAME_FOLDER,
+			NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+			NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+	};
+
+	/**
+	 * Notes read by one query of an export, and inserted by one transaction
+	 * of an import
+	 */
+	private static final int ARCHIVE_BATCH_SIZE = 200;
+
 	/*
 	 * Constants used by the Uri matcher to choose an action based on the
 	 * pattern of the incoming URI
@@ -103,6 +386,31 @@ public class NotePadProvider extends ContentProvider implements
 	// The incoming URI matches a Folder Name URI pattern
 	private static final int FOLDER_NAME = 4;
 
+	// The incoming URI matches the Search URI pattern
+	private static final int SEARCH = 5;
+
+	// The incoming URI matches the Changes URI pattern
+	private static final int CHANGES = 6;
+
+	// The incoming URI matches the Diagnostics URI pattern
+	private static final int DIAGNOSTICS = 7;
+
+	// The incoming URI matches the slow operations URI pattern
+	private static final int DIAGNOSTICS_SLOW = 8;
+
+	// The incoming URI matches the revisions of a note
+	private static final int NOTE_REVISIONS = 9;
+
+	// The incoming URI matches a single revision of a note
+	private static final int NOTE_REVISION_ID = 10;
+
+	/**
+	 * Names of the kinds of URI in the diagnostics, by URI matcher code
+	 */
+	private static final String[] URI_KINDS = { "unknown", "notes", "note_id",
+			"folders", "folder_name", "search", "changes", "diagnostics",
+			"diagnostics_slow", "note_revisions", "note_revision_id" };
+
 	/**
 	 * A UriMatcher instance
 	 */
@@ -111,6 +419,24 @@ public class NotePadProvider extends ContentProvider implements
 	// Handle to a new DatabaseHelper.
 	private DatabaseHelper mOpenHelper;
 
+	// Runs the slow parts of the upgrades in the background
+	private MigrationRunner mMigrations;
+
+	// How long queries waited for their results
+	private final ReaderStats mReaderStats = new ReaderStats();
+
+	// Compiled statements of the frequent writes
+	private final StatementCache mStatements = new StatementCache();
+
+	// Latency and volume of the operations, by kind of URI
+	private final ProviderStats mStats = new ProviderStats();
+
+	// The batch each thread is running, if any
+	private final ThreadLocal<Batch> mBatches = new ThreadLocal<Batch>();
+
+	// Delivers the notifications a batch held back once its interval is over
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
 	/**
 	 * A block that instantiates and sets static objects
 	 */
@@ -139,6 +465,24 @@ public class NotePadProvider extends ContentProvider implements
 		// string to a FOLDERS operation
 		sUriMatcher.addURI(NotePad.AUTHORITY, "folders/*", FOLDER_NAME);
 
+		// Add a pattern that routes URIs terminated with "search" to a SEARCH
+		// operation
+		sUriMatcher.addURI(NotePad.AUTHORITY, "search", SEARCH);
+
+		// Add a pattern that routes URIs terminated with "changes" to a CHANGES
+		// operation
+		sUriMatcher.addURI(NotePad.AUTHORITY, "changes", CHANGES);
+
+		// Add patterns that route the diagnostics URIs
+		sUriMatcher.addURI(NotePad.AUTHORITY, "diagnostics", DIAGNOSTICS);
+		sUriMatcher.addURI(NotePad.AUTHORITY, "diagnostics/slow", DIAGNOSTICS_SLOW);
+
+		// Add patterns that route the revisions of a note
+		sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/"
+				+ NotePad.Revisions.PATH_REVISIONS, NOTE_REVISIONS);
+		sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/"
+				+ NotePad.Revisions.PATH_REVISIONS + "/#", NOTE_REVISION_ID);
+
 		/*
 		 * Creates and initializes a projection map that returns all columns
 		 */
@@ -154,9 +498,9 @@ public class NotePadProvider extends ContentProvider implements
 		sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_TITLE,
 				NotePad.Notes.COLUMN_NAME_TITLE);
 
-		// Maps "note" to "note"
+		// Maps "note" to the content, wherever it is stored
 		sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE,
-				NotePad.Notes.COLUMN_NAME_NOTE);
+				NOTES_WITH_BODIES_CONTENT + " AS " + NotePad.Notes.COLUMN_NAME_NOTE);
 
 		// Maps "created" to "created"
 		sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE,
@@ -170,6 +514,18 @@ public class NotePadProvider extends ContentProvider implements
 		sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_DELETED,
 				NotePad.Notes.COLUMN_NAME_DELETED);
 
+		// Maps "deleted_at" to "deleted_at"
+		sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_DELETED_AT,
+				NotePad.Notes.COLUMN_NAME_DELETED_AT);
+
+		// Maps "title_key" to "title_key"
+		sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_TITLE_KEY,
+				NotePad.Notes.COLUMN_NAME_TITLE_KEY);
+
+		// Maps "preview" to "preview"
+		sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_PREVIEW,
+				NotePad.Notes.COLUMN_NAME_PREVIEW);
+
 		// Maps "filename" to "filename"
 		sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_FILE_NAME,
 				NotePad.Notes.COLUMN_NAME_FILE_NAME);
@@ -177,6 +533,19 @@ public class NotePadProvider extends ContentProvider implements
 		// Maps "folder" to "folder"
 		sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_FOLDER,
 				NotePad.Notes.COLUMN_NAME_FOLDER);
+
+		// Maps "version" to "version"
+		sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_VERSION,
+				NotePad.Notes.COLUMN_NAME_VERSION);
+
+		// Maps "rev" to "rev"
+		sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_REV,
+				NotePad.Notes.COLUMN_NAME_REV);
+
+		// Maps "base" to the merge base in the body of the note
+		sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_BASE,
+				BODIES_TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_BASE + " AS "
+						+ NotePad.Notes.COLUMN_NAME_BASE);
 		
 		// Creates a new projection map instance. The map returns a column name
 		// given a string. The two are usually equal.
@@ -188,6 +557,24 @@ public class NotePadProvider extends ContentProvider implements
 		// Maps "folder" to "folder"
 		sFoldersProjectionMap.put(NotePad.Notes.COLUMN_NAME_FOLDER,
 				NotePad.Notes.COLUMN_NAME_FOLDER);
+
+		// Maps "live_count" to "live_count"
+		sFoldersProjectionMap.put(NotePad.Notes.COLUMN_NAME_LIVE_COUNT,
+				NotePad.Notes.COLUMN_NAME_LIVE_COUNT);
+
+		// Maps "deleted_count" to "deleted_count"
+		sFoldersProjectionMap.put(NotePad.Notes.COLUMN_NAME_DELETED_COUNT,
+				NotePad.Notes.COLUMN_NAME_DELETED_COUNT);
+
+		// The change log columns map to themselves
+		sChangesProjectionMap = new HashMap<String, String>();
+		for (String column : new String[] { NotePad.Changes._ID,
+				NotePad.Changes.COLUMN_NAME_NOTE_ID, NotePad.Changes.COLUMN_NAME_OP,
+				NotePad.Changes.COLUMN_NAME_FOLDER,
+				NotePad.Changes.COLUMN_NAME_OLD_FOLDER,
+				NotePad.Changes.COLUMN_NAME_TIME }) {
+			sChangesProjectionMap.put(column, column);
+		}
 	}
 
 	/**
@@ -197,11 +584,114 @@ public class NotePadProvider extends ContentProvider implements
 	 */
 	static class DatabaseHelper extends SQLiteOpenHelper {
 
+		/**
+		 * Names of the upgrade steps that run in the background
+		 */
+		static final String STEP_BODY_HASHES = "body_hashes";
+		static final String STEP_TITLE_KEYS = "title_keys";
+		static final String STEP_INDEXES = "indexes";
+		static final String STEP_SEARCH_INDEX = "search_index";
+		static final String STEP_PREVIEWS = "previews";
+		static final String STEP_COMPRESS_CONTENTS = "compress_contents";
+
+		/**
+		 * The start of the trigger statements that append to the change log
+		 */
+		private static final String INSERT_CHANGE = "INSERT INTO "
+				+ NotePad.Changes.TABLE_NAME + " ("
+				+ NotePad.Changes.COLUMN_NAME_NOTE_ID + ", "
+				+ NotePad.Changes.COLUMN_NAME_OP + ", "
+				+ NotePad.Changes.COLUMN_NAME_FOLDER + ", "
+				+ NotePad.Changes.COLUMN_NAME_OLD_FOLDER + ", "
+				+ NotePad.Changes.COLUMN_NAME_TIME + ") ";
+
+		/**
+		 * The upgrade steps that run in the background, in the order they run.
+		 * The title keys are filled before their indexes are built, and the
+		 * search index and the previews read the contents before they are
+		 * compressed, which moving them out of the bodies also does.
+		 */
+		static final MigrationRunner.Step[] BACKGROUND_STEPS = {
+			new MigrationRunner.Step() {
+				@Override
+				public String getName() {
+					return STEP_TITLE_KEYS;
+				}
+
+				@Override
+				public long runBatch(SQLiteDatabase db, long position, int batchSize) {
+					return updateTitleKeys(db, position, batchSize);
+				}
+			},
+			new MigrationRunner.Step() {
+				@Override
+				public String getName() {
+					return STEP_INDEXES;
+				}
+
+				@Override
+				public long runBatch(SQLiteDatabase db, long position, int batchSize) {
+					// an index is built by one statement
+					createIndexes(db);
+					return MigrationRunner.DONE;
+				}
+			},
+			new MigrationRunner.Step() {
+				@Override
+				public String getName() {
+					return STEP_SEARCH_INDEX;
+				}
+
+				@Override
+				public long runBatch(SQLiteDatabase db, long position, int batchSize) {
+					return indexNotes(db, position, batchSize);
+				}
+			},
+			new MigrationRunner.Step() {
+				@Override
+				public String getName() {
+					return STEP_PREVIEWS;
+				}
+
+				@Override
+				public long runBatch(SQLiteDatabase db, long position, int batchSize) {
+					return updatePreviews(db, position, batchSize);
+				}
+			},
+			new MigrationRunner.Step() {
+				@Override
+				public String getName() {
+					return STEP_BODY_HASHES;
+				}
+
+				@Override
+				public long runBatch(SQLiteDatabase db, long position, int batchSize) {
+					return hashBodies(db, position, batchSize);
+				}
+			},
+			new MigrationRunner.Step() {
+				@Override
+				public String getName() {
+					return STEP_COMPRESS_CONTENTS;
+				}
+
+				@Override
+				public long runBatch(SQLiteDatabase db, long position, int batchSize) {
+					return compressContents(db, position, batchSize);
+				}
+			}
+		};
+
+		// The SQLite settings of this device
+		private final DatabaseTuning mTuning;
+
 		DatabaseHelper(Context context) {
 
 			// calls the super constructor, requesting the default cursor
 			// factory.
 			super(context, DATABASE_NAME, null, DATABASE_VERSION);
+			mTuning = DatabaseTuning.forDevice(context);
+			Log.i(TAG, "Using " + mTuning);
 		}
 
 		/**
@@ -211,97 +701,1007 @@ public class NotePadProvider extends ContentProvider implements
 		 */
 		@Override
 		public void onCreate(SQLiteDatabase db) {
-			db.execSQL("CREATE TABLE " + NotePad.Notes.TABLE_NAME + " ("
+			MigrationRunner.createTable(db);
+			createNotesTable(db, NotePad.Notes.TABLE_NAME);
+			createBodiesTable(db);
+			createBodiesTrigger(db);
+			createVersionTrigger(db);
+			createIndexes(db);
+			createSearchIndex(db);
+			createBodySearchTriggers(db);
+			createFoldersTable(db);
+			createTombstoneTrigger(db);
+			createChangeLog(db);
+			NoteRevisions.createTable(db);
+		}
+
+		/**
+		 * Creates the change log and the triggers that append to it. Changes
+		 * of deleted notes are not logged, so compacting them adds nothing.
+		 */
+		private static void createChangeLog(SQLiteDatabase db) {
+			// AUTOINCREMENT, so sequence numbers are never reused after the
+			// newest rows were truncated
+			db.execSQL("CREATE TABLE " + NotePad.Changes.TABLE_NAME + " ("
+					+ NotePad.Changes._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+					+ NotePad.Changes.COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+					+ NotePad.Changes.COLUMN_NAME_OP + " TEXT NOT NULL,"
+					+ NotePad.Changes.COLUMN_NAME_FOLDER + " TEXT,"
+					+ NotePad.Changes.COLUMN_NAME_OLD_FOLDER + " TEXT,"
+					+ NotePad.Changes.COLUMN_NAME_TIME + " INTEGER NOT NULL);");
+			String newFolder = "NEW." + NotePad.Notes.COLUMN_NAME_FOLDER;
+			String oldFolder = "OLD." + NotePad.Notes.COLUMN_NAME_FOLDER;
+			db.execSQL("CREATE TRIGGER changes_note_insert AFTER INSERT ON "
+					+ NotePad.Notes.TABLE_NAME + " BEGIN " + INSERT_CHANGE
+					+ "VALUES (NEW." + NotePad.Notes._ID + ", '"
+					+ NotePad.Changes.OP_INSERT + "', " + newFolder + ", NULL, "
+					+ NOW_MILLIS_SQL + "); END;");
+			createNoteChangeTrigger(db);
+			db.execSQL("CREATE TRIGGER changes_note_delete AFTER DELETE ON "
+					+ NotePad.Notes.TABLE_NAME + " WHEN OLD."
+					+ NotePad.Notes.COLUMN_NAME_DELETED + " = 0 BEGIN "
+					+ INSERT_CHANGE + "VALUES (OLD." + NotePad.Notes._ID + ", '"
+					+ NotePad.Changes.OP_DELETE + "', " + oldFolder + ", NULL, "
+					+ NOW_MILLIS_SQL + "); END;");
+			createBodyChangeTrigger(db);
+		}
+
+		/**
+		 * Creates the trigger that logs the updates of the notes. The version
+		 * and deleted_at columns are left out, so the updates made by triggers
+		 * are not logged a second time.
+		 */
+		private static void createNoteChangeTrigger(SQLiteDatabase db) {
+			String newFolder = "NEW." + NotePad.Notes.COLUMN_NAME_FOLDER;
+			String oldFolder = "OLD." + NotePad.Notes.COLUMN_NAME_FOLDER;
+			db.execSQL("CREATE TRIGGER changes_note_update AFTER UPDATE OF "
+					+ NotePad.Notes.COLUMN_NAME_TITLE + ", "
+					+ NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+					+ NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+					+ NotePad.Notes.COLUMN_NAME_DELETED + ", "
+					+ NotePad.Notes.COLUMN_NAME_FILE_NAME + ", "
+					+ NotePad.Notes.COLUMN_NAME_FOLDER + ", "
+					+ NotePad.Notes.COLUMN_NAME_REV + " ON "
+					+ NotePad.Notes.TABLE_NAME + " WHEN OLD."
+					+ NotePad.Notes.COLUMN_NAME_DELETED + " = 0 BEGIN "
+					+ INSERT_CHANGE + "VALUES (NEW." + NotePad.Notes._ID
+					+ ", CASE WHEN NEW." + NotePad.Notes.COLUMN_NAME_DELETED
+					+ " != 0 THEN '" + NotePad.Changes.OP_DELETE + "' WHEN "
+					+ newFolder + " != " + oldFolder + " THEN '"
+					+ NotePad.Changes.OP_MOVE + "' ELSE '" + NotePad.Changes.OP_UPDATE
+					+ "' END, " + newFolder + ", CASE WHEN " + newFolder + " != "
+					+ oldFolder + " THEN " + oldFolder + " END, " + NOW_MILLIS_SQL
+					+ "); END;");
+		}
+
+		/**
+		 * Creates the trigger that logs the notes whose content changed. A body
+		 * whose content the background step moves to the contents table still
+		 * holds the content when it gets its hash, and is not logged.
+		 */
+		private static void createBodyChangeTrigger(SQLiteDatabase db) {
+			db.execSQL("CREATE TRIGGER changes_body_update AFTER UPDATE OF "
+					+ BODIES_COLUMN_NAME_HASH + " ON " + BODIES_TABLE_NAME
+					+ " WHEN " + bodyChanged() + " BEGIN " + INSERT_CHANGE
+					+ "SELECT " + NotePad.Notes._ID + ", '" + NotePad.Changes.OP_UPDATE
+					+ "', " + NotePad.Notes.COLUMN_NAME_FOLDER + ", NULL, "
+					+ NOW_MILLIS_SQL + " FROM " + NotePad.Notes.TABLE_NAME
+					+ " WHERE " + NotePad.Notes._ID + " = NEW."
+					+ BODIES_COLUMN_NAME_NOTE_ID + " AND "
+					+ NotePad.Notes.COLUMN_NAME_DELETED + " = 0; END;");
+		}
+
+		/**
+		 * Builds the condition of an update trigger of the bodies under which
+		 * the content of the note changed, see {@link #hashBodies}.
+		 */
+		private static String bodyChanged() {
+			return "NEW." + BODIES_COLUMN_NAME_HASH + " IS NOT OLD."
+					+ BODIES_COLUMN_NAME_HASH + " AND NEW."
+					+ BODIES_COLUMN_NAME_NOTE + " IS NULL";
+		}
+
+		/**
+		 * Creates the trigger that turns a note into a tombstone when it gets
+		 * deleted: it records the time of the deletion and strips the content
+		 * and the merge base, which only the sync of a live note needs.
+		 */
+		private static void createTombstoneTrigger(SQLiteDatabase db) {
+			db.execSQL("CREATE TRIGGER notes_tombstone AFTER UPDATE OF "
+					+ NotePad.Notes.COLUMN_NAME_DELETED + " ON "
+					+ NotePad.Notes.TABLE_NAME + " WHEN NEW."
+					+ NotePad.Notes.COLUMN_NAME_DELETED + " != 0 AND OLD."
+					+ NotePad.Notes.COLUMN_NAME_DELETED + " = 0 BEGIN UPDATE "
+					+ NotePad.Notes.TABLE_NAME + " SET "
+					+ NotePad.Notes.COLUMN_NAME_DELETED_AT + " = "
+					+ NOW_MILLIS_SQL + ", "
+					+ NotePad.Notes.COLUMN_NAME_PREVIEW + " = NULL WHERE "
+					+ NotePad.Notes._ID + " = NEW." + NotePad.Notes._ID
+					+ "; INSERT OR IGNORE INTO " + CONTENTS_TABLE_NAME + " ("
+					+ CONTENTS_COLUMN_NAME_HASH + ", "
+					+ NotePad.Notes.COLUMN_NAME_NOTE + ") VALUES ('"
+					+ EMPTY_CONTENT_HASH + "', ''); UPDATE " + BODIES_TABLE_NAME
+					+ " SET " + BODIES_COLUMN_NAME_HASH + " = '" + EMPTY_CONTENT_HASH
+					+ "', " + BODIES_COLUMN_NAME_NOTE + " = NULL, "
+					+ NotePad.Notes.COLUMN_NAME_BASE + " = NULL WHERE "
+					+ BODIES_COLUMN_NAME_NOTE_ID + " = NEW."
+					+ NotePad.Notes._ID + "; END;");
+		}
+
+		/**
+		 * Creates a table with the columns of the notes, apart from their
+		 * content and merge base, which live in the bodies table.
+		 */
+		private static void createNotesTable(SQLiteDatabase db, String table) {
+			db.execSQL("CREATE TABLE " + table + " ("
 					+ NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
 					+ NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
-					+ NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
 					+ NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
 					+ NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
 					+ NotePad.Notes.COLUMN_NAME_DELETED
 					+ " INTEGER NOT NULL DEFAULT 0,"
+					+ NotePad.Notes.COLUMN_NAME_DELETED_AT + " INTEGER,"
 					+ NotePad.Notes.COLUMN_NAME_FILE_NAME + " TEXT,"
-					+ NotePad.Notes.COLUMN_NAME_FOLDER + " TEXT NOT NULL DEFAULT '/');");
+					+ NotePad.Notes.COLUMN_NAME_FOLDER + " TEXT NOT NULL DEFAULT '/',"
+					+ NotePad.Notes.COLUMN_NAME_REV + " TEXT,"
+					+ NotePad.Notes.COLUMN_NAME_VERSION + " INTEGER NOT NULL DEFAULT 0,"
+					+ NotePad.Notes.COLUMN_NAME_TITLE_KEY + " BLOB,"
+					+ NotePad.Notes.COLUMN_NAME_PREVIEW + " TEXT);");
 		}
 
 		/**
-		 * 
-		 * Demonstrates that the provider must consider what happens when the
-		 * underlying datastore is changed. In this sample, the database is
-		 * upgraded the database by destroying the existing data. A real
-		 * application should upgrade the database in place.
+		 * Creates the bodies and contents tables and the triggers that count
+		 * the notes referring to each content.
 		 */
-		@Override
-		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-
-			if (oldVersion == 2 && newVersion == 3) {
-				db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME
-						+ " ADD COLUMN " + NotePad.Notes.COLUMN_NAME_DELETED
-						+ " INTEGER NOT NULL DEFAULT 0;");
-			} else if (oldVersion == 4 && newVersion == 5) {
-				db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME
-						+ " ADD COLUMN " + NotePad.Notes.COLUMN_NAME_FOLDER
-						+ " TEXT NOT NULL DEFAULT '/';");
-			} else {
-				// Logs that the database is being upgraded
-				Log.w(TAG, "Upgrading database from version " + oldVersion
-						+ " to " + newVersion
-						+ ", which will destroy all old data");
+		private static void createBodiesTable(SQLiteDatabase db) {
+			db.execSQL("CREATE TABLE " + BODIES_TABLE_NAME + " ("
+					+ BODIES_COLUMN_NAME_NOTE_ID + " INTEGER PRIMARY KEY,"
+					+ BODIES_COLUMN_NAME_HASH + " TEXT,"
+					+ BODIES_COLUMN_NAME_NOTE + " TEXT,"
+					+ NotePad.Notes.COLUMN_NAME_BASE + " TEXT);");
+			createContentsTable(db);
+		}
 
-				// Kills the table and existing data
-				db.execSQL("DROP TABLE IF EXISTS notes");
+		/**
+		 * Creates the contents table and the triggers of the bodies that count
+		 * the notes referring to each content. A body without a hash refers
+		 * to no content.
+		 */
+		private static void createContentsTable(SQLiteDatabase db) {
+			db.execSQL("CREATE TABLE " + CONTENTS_TABLE_NAME + " ("
+					+ CONTENTS_COLUMN_NAME_HASH + " TEXT PRIMARY KEY,"
+					+ NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
+					+ CONTENTS_COLUMN_NAME_REFS + " INTEGER NOT NULL DEFAULT 0);");
+			// the new content is counted before the old one is released, so
+			// a note set to its own content never drops the row
+			db.execSQL("CREATE TRIGGER note_bodies_refs_insert AFTER INSERT ON "
+					+ BODIES_TABLE_NAME + " BEGIN " + countContent("NEW", "+")
+					+ " END;");
+			db.execSQL("CREATE TRIGGER note_bodies_refs_update AFTER UPDATE OF "
+					+ BODIES_COLUMN_NAME_HASH + " ON " + BODIES_TABLE_NAME
+					+ " BEGIN " + countContent("NEW", "+") + " "
+					+ countContent("OLD", "-") + " END;");
+			db.execSQL("CREATE TRIGGER note_bodies_refs_delete AFTER DELETE ON "
+					+ BODIES_TABLE_NAME + " BEGIN " + countContent("OLD", "-")
+					+ " END;");
+		}
 
-				// Recreates the database with a new version
-				onCreate(db);
+		/**
+		 * Builds the trigger statements that add a reference to the content of
+		 * a body, or remove it and drop the content once nothing refers to it.
+		 *
+		 * @param row
+		 *            NEW or OLD
+		 * @param sign
+		 *            + to add the reference, - to remove it
+		 */
+		private static String countContent(String row, String sign) {
+			String hash = row + "." + BODIES_COLUMN_NAME_HASH;
+			String sql = "UPDATE " + CONTENTS_TABLE_NAME + " SET "
+					+ CONTENTS_COLUMN_NAME_REFS + " = " + CONTENTS_COLUMN_NAME_REFS
+					+ " " + sign + " 1 WHERE " + CONTENTS_COLUMN_NAME_HASH + " = "
+					+ hash + ";";
+			if (sign.equals("-")) {
+				sql += " DELETE FROM " + CONTENTS_TABLE_NAME + " WHERE "
+						+ CONTENTS_COLUMN_NAME_HASH + " = " + hash + " AND "
+						+ CONTENTS_COLUMN_NAME_REFS + " <= 0;";
 			}
+			return sql;
 		}
-	}
-
-	/**
-	 * 
-	 * Initializes the provider by creating a new DatabaseHelper. onCreate() is
-	 * called automatically when Android creates the provider in response to a
-	 * resolver request from a client.
-	 */
-	@Override
-	public boolean onCreate() {
-
-		// Creates a new helper object. Note that the database itself isn't
-		// opened until
-		// something tries to access it, and it's only created if it doesn't
-		// already exist.
-		mOpenHelper = new DatabaseHelper(getContext());
 
-		// Assumes that any failures will be reported by a thrown exception.
-		return true;
-	}
+		/**
+		 * Copies the content of the notes of a table into their bodies, along
+		 * with their merge base if the table has one. SQLite has no hash
+		 * function, so the contents are hashed and moved to the contents table
+		 * in the background.
+		 */
+		private static void copyBodies(SQLiteDatabase db, String table,
+				boolean withBase) {
+			String base = withBase ? ", " + NotePad.Notes.COLUMN_NAME_BASE : "";
+			db.execSQL("INSERT INTO " + BODIES_TABLE_NAME + " ("
+					+ BODIES_COLUMN_NAME_NOTE_ID + ", " + BODIES_COLUMN_NAME_NOTE
+					+ base + ") SELECT " + NotePad.Notes._ID + ", "
+					+ NotePad.Notes.COLUMN_NAME_NOTE + base + " FROM " + table + ";");
+			MigrationRunner.schedule(db, STEP_BODY_HASHES);
+		}
 
-	/**
-	 * This method is called when a client calls
-	 * {@link android.content.ContentResolver#query(Uri, String[], String, String[], String)}
-	 * . Queries the database and returns a cursor containing the results.
-	 * 
-	 * @return A cursor containing the results of the query. The cursor exists
-	 *         but is empty if the query returns no results or an exception
-	 *         occurs.
-	 * @throws IllegalArgumentException
-	 *             if the incoming URI pattern is invalid.
-	 */
-	@Override
-	public Cursor query(Uri uri, String[] projection, String selection,
-			String[] selectionArgs, String sortOrder) {
+		/**
+		 * Moves the content of a number of bodies after the given note _ID
+		 * from the bodies to the contents table. A body gets its hash while it
+		 * still holds its content, which the triggers take for a body whose
+		 * content did not change, and the content is cleared after.
+		 *
+		 * @return the _ID of the last note moved, or
+		 *         {@link MigrationRunner#DONE} if there were none
+		 */
+		private static long hashBodies(SQLiteDatabase db, long afterId, int count) {
+			Cursor c = db.query(BODIES_TABLE_NAME, new String[] {
+					BODIES_COLUMN_NAME_NOTE_ID, BODIES_COLUMN_NAME_NOTE },
+					BODIES_COLUMN_NAME_HASH + " IS NULL AND "
+							+ BODIES_COLUMN_NAME_NOTE_ID + " > ?",
+					new String[] { String.valueOf(afterId) }, null, null,
+					BODIES_COLUMN_NAME_NOTE_ID + " ASC", Integer.toString(count));
+			// a body without content holds the empty one until it is cleared
+			SQLiteStatement setHash = db.compileStatement("UPDATE "
+					+ BODIES_TABLE_NAME + " SET " + BODIES_COLUMN_NAME_HASH + " = ?, "
+					+ BODIES_COLUMN_NAME_NOTE + " = coalesce("
+					+ BODIES_COLUMN_NAME_NOTE + ", '') WHERE "
+					+ BODIES_COLUMN_NAME_NOTE_ID + " = ?");
+			SQLiteStatement clear = db.compileStatement("UPDATE "
+					+ BODIES_TABLE_NAME + " SET " + BODIES_COLUMN_NAME_NOTE
+					+ " = NULL WHERE " + BODIES_COLUMN_NAME_NOTE_ID + " = ?");
+			try {
+				long lastId = MigrationRunner.DONE;
+				while (c.moveToNext()) {
+					lastId = c.getLong(0);
+					setHash.bindString(1, storeContent(db, c.getString(1)));
+					setHash.bindLong(2, lastId);
+					setHash.execute();
+					clear.bindLong(1, lastId);
+					clear.execute();
+				}
+				return lastId;
+			} finally {
+				clear.close();
+				setHash.close();
+				c.close();
+			}
+		}
 
-		// Constructs a new query builder and sets its table name
-		SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-		qb.setTables(NotePad.Notes.TABLE_NAME);
+		/**
+		 * Creates the trigger that deletes the body of a note along with it.
+		 */
+		private static void createBodiesTrigger(SQLiteDatabase db) {
+			db.execSQL("CREATE TRIGGER notes_bodies_delete AFTER DELETE ON "
+					+ NotePad.Notes.TABLE_NAME + " BEGIN DELETE FROM "
+					+ BODIES_TABLE_NAME + " WHERE " + BODIES_COLUMN_NAME_NOTE_ID
+					+ " = OLD." + NotePad.Notes._ID + "; END;");
+		}
 
 		/**
-		 * Choose the projection and adjust the "where" clause based on URI
-		 * pattern-matching.
+		 * Moves the content and the merge base of the notes to the bodies
+		 * table. SQLite cannot drop a column, so the notes table is copied
+		 * without them and the triggers of the notes are created again. The
+		 * indexes are built again and the contents hashed in the background.
 		 */
-		switch (sUriMatcher.match(uri)) {
+		private static void moveBodiesOut(SQLiteDatabase db) {
+			createBodiesTable(db);
+			copyBodies(db, NotePad.Notes.TABLE_NAME, true);
+			String columns = NotePad.Notes._ID + ", "
+					+ NotePad.Notes.COLUMN_NAME_TITLE + ", "
+					+ NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+					+ NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+					+ NotePad.Notes.COLUMN_NAME_DELETED + ", "
+					+ NotePad.Notes.COLUMN_NAME_FILE_NAME + ", "
+					+ NotePad.Notes.COLUMN_NAME_FOLDER + ", "
+					+ NotePad.Notes.COLUMN_NAME_REV + ", "
+					+ NotePad.Notes.COLUMN_NAME_VERSION;
+			String newTable = NotePad.Notes.TABLE_NAME + "_new";
+			createNotesTable(db, newTable);
+			db.execSQL("INSERT INTO " + newTable + " (" + columns + ") SELECT "
+					+ columns + " FROM " + NotePad.Notes.TABLE_NAME + ";");
+			// also drops the indexes and triggers of the old table
+			db.execSQL("DROP TABLE " + NotePad.Notes.TABLE_NAME + ";");
+			db.execSQL("ALTER TABLE " + newTable + " RENAME TO "
+					+ NotePad.Notes.TABLE_NAME + ";");
+			createBodiesTrigger(db);
+			createVersionTrigger(db);
+			MigrationRunner.schedule(db, STEP_INDEXES);
+			createSearchTriggers(db);
+			createBodySearchTriggers(db);
+			createFolderTriggers(db);
+		}
+
+		/**
+		 * Creates the folders table and the triggers that keep its note counts
+		 * up to date. A folder row exists while the folder has at least one
+		 * note, deleted or not, which is what the former DISTINCT query over the
+		 * notes returned.
+		 */
+		private static void createFoldersTable(SQLiteDatabase db) {
+			db.execSQL("CREATE TABLE " + NotePad.Notes.FOLDERS_TABLE_NAME + " ("
+					+ NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
+					+ NotePad.Notes.COLUMN_NAME_FOLDER + " TEXT NOT NULL UNIQUE,"
+					+ NotePad.Notes.COLUMN_NAME_LIVE_COUNT + " INTEGER NOT NULL DEFAULT 0,"
+					+ NotePad.Notes.COLUMN_NAME_DELETED_COUNT + " INTEGER NOT NULL DEFAULT 0);");
+			createFolderTriggers(db);
+		}
+
+		private static void createFolderTriggers(SQLiteDatabase db) {
+			// the new folder is counted before the old one, so moving a note
+			// within its folder never drops and recreates the folder row
+			db.execSQL("CREATE TRIGGER folders_note_insert AFTER INSERT ON "
+					+ NotePad.Notes.TABLE_NAME + " BEGIN "
+					+ countNote("NEW", "+") + " END;");
+			db.execSQL("CREATE TRIGGER folders_note_update AFTER UPDATE OF "
+					+ NotePad.Notes.COLUMN_NAME_FOLDER + ", "
+					+ NotePad.Notes.COLUMN_NAME_DELETED + " ON "
+					+ NotePad.Notes.TABLE_NAME + " BEGIN "
+					+ countNote("NEW", "+") + " " + countNote("OLD", "-") + " END;");
+			db.execSQL("CREATE TRIGGER folders_note_delete AFTER DELETE ON "
+					+ NotePad.Notes.TABLE_NAME + " BEGIN "
+					+ countNote("OLD", "-") + " END;");
+		}
+
+		/**
+		 * Builds the trigger statements that add a note to the counts of its
+		 * folder, or remove it and drop the folder once it is empty.
+		 *
+		 * @param row
+		 *            NEW or OLD
+		 * @param sign
+		 *            + to add the note, - to remove it
+		 */
+		private static String countNote(String row, String sign) {
+			String folder = row + "." + NotePad.Notes.COLUMN_NAME_FOLDER;
+			String deleted = row + "." + NotePad.Notes.COLUMN_NAME_DELETED;
+			StringBuilder sql = new StringBuilder();
+			if (sign.equals("+")) {
+				sql.append("INSERT OR IGNORE INTO ").append(NotePad.Notes.FOLDERS_TABLE_NAME)
+						.append(" (").append(NotePad.Notes.COLUMN_NAME_FOLDER)
+						.append(") VALUES (").append(folder).append("); ");
+			}
+			sql.append("UPDATE ").append(NotePad.Notes.FOLDERS_TABLE_NAME).append(" SET ")
+					.append(NotePad.Notes.COLUMN_NAME_LIVE_COUNT).append(" = ")
+					.append(NotePad.Notes.COLUMN_NAME_LIVE_COUNT).append(' ').append(sign)
+					.append(" (").append(deleted).append(" = 0), ")
+					.append(NotePad.Notes.COLUMN_NAME_DELETED_COUNT).append(" = ")
+					.append(NotePad.Notes.COLUMN_NAME_DELETED_COUNT).append(' ').append(sign)
+					.append(" (").append(deleted).append(" != 0) WHERE ")
+					.append(NotePad.Notes.COLUMN_NAME_FOLDER).append(" = ").append(folder).append(';');
+			if (sign.equals("-")) {
+				sql.append(" DELETE FROM ").append(NotePad.Notes.FOLDERS_TABLE_NAME)
+						.append(" WHERE ").append(NotePad.Notes.COLUMN_NAME_FOLDER)
+						.append(" = ").append(folder).append(" AND ")
+						.append(NotePad.Notes.COLUMN_NAME_LIVE_COUNT).append(" = 0 AND ")
+						.append(NotePad.Notes.COLUMN_NAME_DELETED_COUNT).append(" = 0;");
+			}
+			return sql.toString();
+		}
+
+		/**
+		 * Creates the full-text index and the triggers of the notes that keep
+		 * it up to date. The triggers of the bodies are created along with the
+		 * bodies table, which upgrades from before version 11 do not have yet.
+		 */
+		private static void createSearchIndex(SQLiteDatabase db) {
+			db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts3("
+					+ NotePad.Notes.COLUMN_NAME_TITLE + ", "
+					+ NotePad.Notes.COLUMN_NAME_NOTE + ");");
+			createSearchTriggers(db);
+		}
+
+		/**
+		 * Creates the triggers that index a note again when its title or its
+		 * deleted flag change. Only notes that are not deleted are indexed.
+		 * The version trigger only changes the version, so it does not cause
+		 * the note to be indexed again. A new title only replaces the indexed
+		 * title, as the triggers cannot read a compressed content.
+		 */
+		private static void createSearchTriggers(SQLiteDatabase db) {
+			db.execSQL("CREATE TRIGGER notes_fts_insert AFTER INSERT ON "
+					+ NotePad.Notes.TABLE_NAME + " BEGIN "
+					+ indexNote("NEW." + NotePad.Notes._ID) + " END;");
+			db.execSQL("CREATE TRIGGER notes_fts_update AFTER UPDATE OF "
+					+ NotePad.Notes.COLUMN_NAME_DELETED + " ON "
+					+ NotePad.Notes.TABLE_NAME + " BEGIN "
+					+ indexNote("NEW." + NotePad.Notes._ID) + " END;");
+			db.execSQL("CREATE TRIGGER notes_fts_title AFTER UPDATE OF "
+					+ NotePad.Notes.COLUMN_NAME_TITLE + " ON "
+					+ NotePad.Notes.TABLE_NAME + " BEGIN UPDATE " + FTS_TABLE_NAME
+					+ " SET " + NotePad.Notes.COLUMN_NAME_TITLE + " = NEW."
+					+ NotePad.Notes.COLUMN_NAME_TITLE + " WHERE docid = NEW."
+					+ NotePad.Notes._ID + "; END;");
+			db.execSQL("CREATE TRIGGER notes_fts_delete AFTER DELETE ON "
+					+ NotePad.Notes.TABLE_NAME + " BEGIN DELETE FROM "
+					+ FTS_TABLE_NAME + " WHERE docid = OLD." + NotePad.Notes._ID
+					+ "; END;");
+		}
+
+		/**
+		 * Creates the triggers that index a note again when its body changes.
+		 */
+		private static void createBodySearchTriggers(SQLiteDatabase db) {
+			db.execSQL("CREATE TRIGGER note_bodies_fts_insert AFTER INSERT ON "
+					+ BODIES_TABLE_NAME + " BEGIN "
+					+ indexNote("NEW." + BODIES_COLUMN_NAME_NOTE_ID) + " END;");
+			db.execSQL("CREATE TRIGGER note_bodies_fts_update AFTER UPDATE OF "
+					+ BODIES_COLUMN_NAME_HASH + " ON " + BODIES_TABLE_NAME
+					+ " WHEN " + bodyChanged() + " BEGIN "
+					+ indexNote("NEW." + BODIES_COLUMN_NAME_NOTE_ID) + " END;");
+		}
+
+		/**
+		 * Builds the trigger statements that replace the indexed title and
+		 * body of a note. A compressed content is indexed without its body,
+		 * which the provider indexes when it writes the content.
+		 *
+		 * @param id
+		 *            the expression of the _ID of the note
+		 */
+		private static String indexNote(String id) {
+			return "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = " + id
+					+ "; INSERT INTO " + FTS_TABLE_NAME + " (docid, "
+					+ NotePad.Notes.COLUMN_NAME_TITLE + ", "
+					+ NotePad.Notes.COLUMN_NAME_NOTE + ") SELECT n."
+					+ NotePad.Notes._ID + ", n." + NotePad.Notes.COLUMN_NAME_TITLE
+					+ ", " + INDEXED_CONTENT + " FROM "
+					+ NotePad.Notes.TABLE_NAME + " n" + NOTE_CONTENT_JOIN
+					+ " WHERE n." + NotePad.Notes._ID + " = " + id + " AND n." + NotePad.Notes.COLUMN_NAME_DELETED
+					+ " = 0;";
+		}
+
+		/**
+		 * Adds the notes that are not deleted and not indexed yet to the search
+		 * index, up to a number of notes after the given _ID.
+		 *
+		 * @return the _ID of the last note looked at, or
+		 *         {@link MigrationRunner#DONE} if there were none
+		 */
+		private static long indexNotes(SQLiteDatabase db, long afterId, int count) {
+			// the maximum of no rows is null, read as 0, which no note has
+			long lastId = DatabaseUtils.longForQuery(db, "SELECT MAX("
+					+ NotePad.Notes._ID + ") FROM (SELECT " + NotePad.Notes._ID
+					+ " FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+					+ NotePad.Notes._ID + " > ? ORDER BY " + NotePad.Notes._ID
+					+ " LIMIT " + count + ")",
+					new String[] { String.valueOf(afterId) });
+			if (lastId == 0) {
+				return MigrationRunner.DONE;
+			}
+			// notes changed since the upgrade were indexed by the triggers
+			db.execSQL("INSERT INTO " + FTS_TABLE_NAME + " (docid, "
+					+ NotePad.Notes.COLUMN_NAME_TITLE + ", "
+					+ NotePad.Notes.COLUMN_NAME_NOTE + ") SELECT n."
+					+ NotePad.Notes._ID + ", n." + NotePad.Notes.COLUMN_NAME_TITLE
+					+ ", " + INDEXED_CONTENT + " FROM "
+					+ NotePad.Notes.TABLE_NAME + " n" + NOTE_CONTENT_JOIN
+					+ " WHERE n." + NotePad.Notes._ID + " > ? AND n." + NotePad.Notes._ID + " <= ? AND n."
+					+ NotePad.Notes.COLUMN_NAME_DELETED + " = 0 AND NOT EXISTS (SELECT 1 FROM "
+					+ FTS_TABLE_NAME + " WHERE docid = n." + NotePad.Notes._ID + ");",
+					new Object[] { afterId, lastId });
+			return lastId;
+		}
+
+		/**
+		 * Computes the previews of a number of notes after the given _ID.
+		 *
+		 * @return the _ID of the last note updated, or
+		 *         {@link MigrationRunner#DONE} if there were none
+		 */
+		private static long updatePreviews(SQLiteDatabase db, long afterId, int count) {
+			Cursor c = db.rawQuery("SELECT n." + NotePad.Notes._ID + ", "
+					+ JOINED_CONTENT + " FROM "
+					+ NotePad.Notes.TABLE_NAME + " n" + NOTE_CONTENT_JOIN
+					+ " WHERE n." + NotePad.Notes._ID + " > ? ORDER BY n."
+					+ NotePad.Notes._ID + " LIMIT " + count,
+					new String[] { String.valueOf(afterId) });
+			SQLiteStatement update = db.compileStatement("UPDATE "
+					+ NotePad.Notes.TABLE_NAME + " SET "
+					+ NotePad.Notes.COLUMN_NAME_PREVIEW + " = ? WHERE "
+					+ NotePad.Notes._ID + " = ?");
+			try {
+				long lastId = MigrationRunner.DONE;
+				while (c.moveToNext()) {
+					lastId = c.getLong(0);
+					update.bindString(1, makePreview(ContentCodec.read(c, 1)));
+					update.bindLong(2, lastId);
+					update.execute();
+				}
+				return lastId;
+			} finally {
+				update.close();
+				c.close();
+			}
+		}
+
+		/**
+		 * Compresses the contents longer than the threshold, up to a number
+		 * of contents after the given row.
+		 *
+		 * @return the rowid of the last content looked at, or
+		 *         {@link MigrationRunner#DONE} if there were none
+		 */
+		private static long compressContents(SQLiteDatabase db, long afterRow, int count) {
+			int threshold = sCompressThresholdChars;
+			if (threshold <= 0) {
+				return MigrationRunner.DONE;
+			}
+			Cursor c = db.rawQuery("SELECT rowid, " + NotePad.Notes.COLUMN_NAME_NOTE
+					+ " FROM " + CONTENTS_TABLE_NAME + " WHERE rowid > ? AND typeof("
+					+ NotePad.Notes.COLUMN_NAME_NOTE + ") = 'text' AND length("
+					+ NotePad.Notes.COLUMN_NAME_NOTE + ") > " + threshold
+					+ " ORDER BY rowid LIMIT " + count,
+					new String[] { String.valueOf(afterRow) });
+			SQLiteStatement update = db.compileStatement("UPDATE "
+					+ CONTENTS_TABLE_NAME + " SET " + NotePad.Notes.COLUMN_NAME_NOTE
+					+ " = ? WHERE rowid = ?");
+			try {
+				long lastRow = MigrationRunner.DONE;
+				while (c.moveToNext()) {
+					lastRow = c.getLong(0);
+					byte[] data = ContentCodec.encode(c.getString(1));
+					if (data != null) {
+						update.bindBlob(1, data);
+						update.bindLong(2, lastRow);
+						update.execute();
+					}
+				}
+				return lastRow;
+			} finally {
+				update.close();
+				c.close();
+			}
+		}
+
+		/**
+		 * Computes the title keys of a number of notes after the given _ID.
+		 *
+		 * @return the _ID of the last note updated, or
+		 *         {@link MigrationRunner#DONE} if there were none
+		 */
+		private static long updateTitleKeys(SQLiteDatabase db, long afterId, int count) {
+			Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] {
+					NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE },
+					NotePad.Notes._ID + " > ?", new String[] { String.valueOf(afterId) },
+					null, null, NotePad.Notes._ID + " ASC", Integer.toString(count));
+			SQLiteStatement update = db.compileStatement("UPDATE "
+					+ NotePad.Notes.TABLE_NAME + " SET "
+					+ NotePad.Notes.COLUMN_NAME_TITLE_KEY + " = ? WHERE "
+					+ NotePad.Notes._ID + " = ?");
+			try {
+				long lastId = MigrationRunner.DONE;
+				while (c.moveToNext()) {
+					lastId = c.getLong(0);
+					update.bindBlob(1, getTitleKey(c.getString(1)));
+					update.bindLong(2, lastId);
+					update.execute();
+				}
+				return lastId;
+			} finally {
+				update.close();
+				c.close();
+			}
+		}
+
+		/**
+		 * Creates the secondary indexes of the notes table, one for the list
+		 * of all notes and one for the lists of folders per sort mode.
+		 */
+		private static void createIndexes(SQLiteDatabase db) {
+			boolean partial = supportsPartialIndexes(db);
+			createLiveIndex(db, partial, INDEX_LIVE_MODIFIED,
+					NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+			createLiveIndex(db, partial, INDEX_LIVE_CREATED,
+					NotePad.Notes.COLUMN_NAME_CREATE_DATE);
+			createLiveIndex(db, partial, INDEX_LIVE_TITLE_KEY,
+					NotePad.Notes.COLUMN_NAME_TITLE_KEY);
+			createFolderIndex(db, INDEX_FOLDER_DELETED_MODIFIED,
+					NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+			createFolderIndex(db, INDEX_FOLDER_DELETED_CREATED,
+					NotePad.Notes.COLUMN_NAME_CREATE_DATE);
+			createFolderIndex(db, INDEX_FOLDER_DELETED_TITLE_KEY,
+					NotePad.Notes.COLUMN_NAME_TITLE_KEY);
+		}
+
+		/**
+		 * Creates an index of the notes that are not deleted by a sort key,
+		 * covering the title the list shows. It is a partial index, which
+		 * needs SQLite 3.8.0; older versions get a plain index led by the
+		 * deleted flag instead.
+		 */
+		private static void createLiveIndex(SQLiteDatabase db, boolean partial,
+				String name, String key) {
+			if (partial) {
+				db.execSQL("CREATE INDEX IF NOT EXISTS " + name + " ON "
+						+ NotePad.Notes.TABLE_NAME + " (" + key + ", "
+						+ NotePad.Notes.COLUMN_NAME_TITLE + ", "
+						+ NotePad.Notes.COLUMN_NAME_DELETED + ") WHERE "
+						+ NotePad.Notes.COLUMN_NAME_DELETED + " = 0;");
+			} else {
+				db.execSQL("CREATE INDEX IF NOT EXISTS " + name + " ON "
+						+ NotePad.Notes.TABLE_NAME + " ("
+						+ NotePad.Notes.COLUMN_NAME_DELETED + ", " + key + ", "
+						+ NotePad.Notes.COLUMN_NAME_TITLE + ");");
+			}
+		}
+
+		/**
+		 * Creates an index of the notes of each folder by a sort key, also
+		 * serving the list of folders
+		 */
+		private static void createFolderIndex(SQLiteDatabase db, String name, String key) {
+			db.execSQL("CREATE INDEX IF NOT EXISTS " + name + " ON "
+					+ NotePad.Notes.TABLE_NAME + " ("
+					+ NotePad.Notes.COLUMN_NAME_FOLDER + ", "
+					+ NotePad.Notes.COLUMN_NAME_DELETED + ", " + key + ", "
+					+ NotePad.Notes.COLUMN_NAME_TITLE + ");");
+		}
+
+		/**
+		 * Returns true if the SQLite library supports partial indexes, which
+		 * were added in 3.8.0.
+		 */
+		static boolean supportsPartialIndexes(SQLiteDatabase db) {
+			String[] version = DatabaseUtils.stringForQuery(db,
+					"SELECT sqlite_version()", null).split("\\.");
+			int major = Integer.parseInt(version[0]);
+			int minor = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+			return major > 3 || (major == 3 && minor >= 8);
+		}
+
+		/**
+		 * Switches a writable database to write-ahead logging, so queries from
+		 * the UI read a consistent snapshot instead of waiting for the writes
+		 * of a sync to commit, then applies the tuning profile of the device.
+		 * The profile only reaches this primary connection, see
+		 * {@link DatabaseTuning}.
+		 */
+		@Override
+		public void onOpen(SQLiteDatabase db) {
+			super.onOpen(db);
+			if (!db.isReadOnly()) {
+				if (db.enableWriteAheadLogging()) {
+					runPragma(db, "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES);
+					runPragma(db, "PRAGMA journal_size_limit = " + JOURNAL_SIZE_LIMIT_BYTES);
+				} else {
+					Log.w(TAG, "Write-ahead logging not available");
+				}
+			}
+			mTuning.apply(db);
+		}
+
+		/**
+		 * Runs a pragma that returns a row, which execSQL() does not accept on
+		 * every platform version.
+		 */
+		static void runPragma(SQLiteDatabase db, String pragma) {
+			Cursor c = db.rawQuery(pragma, null);
+			try {
+				c.moveToFirst();
+			} finally {
+				c.close();
+			}
+		}
+
+		/**
+		 * Creates the trigger that increments the version of a note on every
+		 * update that does not set the version itself. The title key and the
+		 * preview are left out, so computing them again does not change the
+		 * notes. The content and the merge base are in the bodies, and
+		 * {@link NotePadProvider#updateNotes} bumps the version for them.
+		 */
+		private static void createVersionTrigger(SQLiteDatabase db) {
+			db.execSQL("CREATE TRIGGER notes_version_update AFTER UPDATE OF "
+					+ NotePad.Notes.COLUMN_NAME_TITLE + ", "
+					+ NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+					+ NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+					+ NotePad.Notes.COLUMN_NAME_DELETED + ", "
+					+ NotePad.Notes.COLUMN_NAME_DELETED_AT + ", "
+					+ NotePad.Notes.COLUMN_NAME_FILE_NAME + ", "
+					+ NotePad.Notes.COLUMN_NAME_FOLDER + ", "
+					+ NotePad.Notes.COLUMN_NAME_REV + " ON "
+					+ NotePad.Notes.TABLE_NAME + " WHEN NEW."
+					+ NotePad.Notes.COLUMN_NAME_VERSION + " = OLD."
+					+ NotePad.Notes.COLUMN_NAME_VERSION + " BEGIN UPDATE "
+					+ NotePad.Notes.TABLE_NAME + " SET "
+					+ NotePad.Notes.COLUMN_NAME_VERSION + " = OLD."
+					+ NotePad.Notes.COLUMN_NAME_VERSION + " + 1 WHERE "
+					+ NotePad.Notes._ID + " = NEW." + NotePad.Notes._ID
+					+ "; END;");
+		}
+
+		/**
+		 * 
+		 * Upgrades the database in place, one version at a time. Only the
+		 * schema changes run here, in the first call that opens the database;
+		 * building indexes and filling the search index are scheduled for the
+		 * {@link MigrationRunner}. Versions older than 4 have no upgrade steps,
+		 * so their notes are copied into a new database.
+		 */
+		@Override
+		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			// created first, the steps below schedule background work in it
+			MigrationRunner.createTable(db);
+
+			if (oldVersion < 4) {
+				Log.w(TAG, "Upgrading database from version " + oldVersion
+						+ " to " + newVersion + " by copying the notes");
+				copyOldNotes(db);
+				return;
+			}
+			if (oldVersion < 5) {
+				db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME
+						+ " ADD COLUMN " + NotePad.Notes.COLUMN_NAME_FOLDER
+						+ " TEXT NOT NULL DEFAULT '/';");
+			}
+			if (oldVersion < 6) {
+				db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME
+						+ " ADD COLUMN " + NotePad.Notes.COLUMN_NAME_REV
+						+ " TEXT;");
+				db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME
+						+ " ADD COLUMN " + NotePad.Notes.COLUMN_NAME_BASE
+						+ " TEXT;");
+			}
+			if (oldVersion < 7) {
+				db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME
+						+ " ADD COLUMN " + NotePad.Notes.COLUMN_NAME_VERSION
+						+ " INTEGER NOT NULL DEFAULT 0;");
+				createVersionTrigger(db);
+			}
+			if (oldVersion < 8) {
+				MigrationRunner.schedule(db, STEP_INDEXES);
+			}
+			if (oldVersion < 9) {
+				// notes changed from now on are indexed by the triggers, the
+				// others in the background
+				createSearchIndex(db);
+				MigrationRunner.schedule(db, STEP_SEARCH_INDEX);
+			}
+			if (oldVersion < 10) {
+				createFoldersTable(db);
+				db.execSQL("INSERT INTO " + NotePad.Notes.FOLDERS_TABLE_NAME + " ("
+						+ NotePad.Notes.COLUMN_NAME_FOLDER + ", "
+						+ NotePad.Notes.COLUMN_NAME_LIVE_COUNT + ", "
+						+ NotePad.Notes.COLUMN_NAME_DELETED_COUNT + ") SELECT "
+						+ NotePad.Notes.COLUMN_NAME_FOLDER + ", SUM("
+						+ NotePad.Notes.COLUMN_NAME_DELETED + " = 0), SUM("
+						+ NotePad.Notes.COLUMN_NAME_DELETED + " != 0) FROM "
+						+ NotePad.Notes.TABLE_NAME + " GROUP BY "
+						+ NotePad.Notes.COLUMN_NAME_FOLDER + ";");
+			}
+			if (oldVersion < 11) {
+				moveBodiesOut(db);
+			}
+			if (oldVersion < 12) {
+				// the notes table rebuilt by the previous step already has it
+				if (oldVersion >= 11) {
+					db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME
+							+ " ADD COLUMN " + NotePad.Notes.COLUMN_NAME_DELETED_AT
+							+ " INTEGER;");
+				}
+				createTombstoneTrigger(db);
+				// the notes deleted so far start aging now
+				ContentValues values = new ContentValues();
+				values.put(NotePad.Notes.COLUMN_NAME_DELETED_AT, System.currentTimeMillis());
+				db.update(NotePad.Notes.TABLE_NAME, values,
+						NotePad.Notes.COLUMN_NAME_DELETED + " != 0", null);
+			}
+			if (oldVersion < 13) {
+				createChangeLog(db);
+			}
+			// version 14 added the migrations table, created above
+			if (oldVersion < 15) {
+				// the notes table rebuilt by the body split already has it
+				if (oldVersion >= 11) {
+					db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME
+							+ " ADD COLUMN " + NotePad.Notes.COLUMN_NAME_TITLE_KEY
+							+ " BLOB;");
+				}
+				db.execSQL("DROP TRIGGER IF EXISTS notes_version_update;");
+				createVersionTrigger(db);
+				MigrationRunner.schedule(db, STEP_TITLE_KEYS);
+				MigrationRunner.schedule(db, STEP_INDEXES);
+			}
+			if (oldVersion < 16) {
+				NoteRevisions.createTable(db);
+			}
+			if (oldVersion < 17) {
+				// the body split above already has the columns of the hashes
+				if (oldVersion >= 11) {
+					addContentsTable(db);
+				}
+			}
+			if (oldVersion < 18) {
+				db.execSQL("DROP TRIGGER IF EXISTS notes_fts_insert;");
+				db.execSQL("DROP TRIGGER IF EXISTS notes_fts_update;");
+				db.execSQL("DROP TRIGGER IF EXISTS notes_fts_title;");
+				db.execSQL("DROP TRIGGER IF EXISTS notes_fts_delete;");
+				db.execSQL("DROP TRIGGER IF EXISTS note_bodies_fts_insert;");
+				db.execSQL("DROP TRIGGER IF EXISTS note_bodies_fts_update;");
+				createSearchTriggers(db);
+				createBodySearchTriggers(db);
+				MigrationRunner.schedule(db, STEP_COMPRESS_CONTENTS);
+			}
+			if (oldVersion < 19) {
+				// the notes table rebuilt by the body split already has it
+				if (oldVersion >= 11) {
+					db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME
+							+ " ADD COLUMN " + NotePad.Notes.COLUMN_NAME_PREVIEW
+							+ " TEXT;");
+				}
+				db.execSQL("DROP TRIGGER IF EXISTS notes_tombstone;");
+				createTombstoneTrigger(db);
+				MigrationRunner.schedule(db, STEP_PREVIEWS);
+			}
+			if (oldVersion < 20) {
+				// the body split above already moved the merge bases
+				if (oldVersion >= 11) {
+					moveBasesOut(db);
+				}
+			}
+		}
+
+		/**
+		 * Moves the merge bases of the notes to their bodies. SQLite cannot
+		 * drop a column, so the base column of the notes stays, empty. The
+		 * triggers that watch it are created again without it first, so
+		 * emptying it neither changes the versions of the notes nor logs them.
+		 */
+		private static void moveBasesOut(SQLiteDatabase db) {
+			db.execSQL("ALTER TABLE " + BODIES_TABLE_NAME + " ADD COLUMN "
+					+ NotePad.Notes.COLUMN_NAME_BASE + " TEXT;");
+			db.execSQL("DROP TRIGGER IF EXISTS notes_version_update;");
+			createVersionTrigger(db);
+			db.execSQL("DROP TRIGGER IF EXISTS changes_note_update;");
+			createNoteChangeTrigger(db);
+			db.execSQL("DROP TRIGGER IF EXISTS notes_tombstone;");
+			createTombstoneTrigger(db);
+			// only the synced notes have a base
+			String synced = " WHERE " + NotePad.Notes.COLUMN_NAME_BASE
+					+ " IS NOT NULL";
+			db.execSQL("UPDATE " + BODIES_TABLE_NAME + " SET "
+					+ NotePad.Notes.COLUMN_NAME_BASE + " = (SELECT "
+					+ NotePad.Notes.COLUMN_NAME_BASE + " FROM "
+					+ NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID
+					+ " = " + BODIES_COLUMN_NAME_NOTE_ID + ") WHERE "
+					+ BODIES_COLUMN_NAME_NOTE_ID + " IN (SELECT "
+					+ NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME
+					+ synced + ");");
+			db.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+					+ NotePad.Notes.COLUMN_NAME_BASE + " = NULL" + synced + ";");
+		}
+
+		/**
+		 * Adds the contents table and the hash of the bodies, which stays null
+		 * until the background step moves the content of the body there. The
+		 * notes are read from their body until then. The triggers of the
+		 * content are created again for the hash, apart from the tombstone and
+		 * search triggers, which the next versions replace.
+		 */
+		private static void addContentsTable(SQLiteDatabase db) {
+			createContentsTable(db);
+			db.execSQL("ALTER TABLE " + BODIES_TABLE_NAME + " ADD COLUMN "
+					+ BODIES_COLUMN_NAME_HASH + " TEXT;");
+			db.execSQL("DROP TRIGGER IF EXISTS changes_body_update;");
+			createBodyChangeTrigger(db);
+			MigrationRunner.schedule(db, STEP_BODY_HASHES);
+		}
+
+		/**
+		 * Copies the notes of a database older than version 4, which have a
+		 * title, content and dates, into the tables of a new database.
+		 */
+		private void copyOldNotes(SQLiteDatabase db) {
+			String oldTable = NotePad.Notes.TABLE_NAME + "_old";
+			db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " RENAME TO "
+					+ oldTable + ";");
+			onCreate(db);
+			String columns = NotePad.Notes._ID + ", "
+					+ NotePad.Notes.COLUMN_NAME_TITLE + ", "
+					+ NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+					+ NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE;
+			db.execSQL("INSERT INTO " + NotePad.Notes.TABLE_NAME + " (" + columns
+					+ ") SELECT " + columns + " FROM " + oldTable + ";");
+			copyBodies(db, oldTable, false);
+			db.execSQL("DROP TABLE " + oldTable + ";");
+		}
+	}
+
+	/**
+	 * 
+	 * Initializes the provider by creating a new DatabaseHelper. onCreate() is
+	 * called automatically when Android creates the provider in response to a
+	 * resolver request from a client.
+	 */
+	@Override
+	public boolean onCreate() {
+
+		// Creates a new helper object. Note that the database itself isn't
+		// opened until
+		// something tries to access it, and it's only created if it doesn't
+		// already exist.
+		mOpenHelper = new DatabaseHelper(getContext());
+		sCompressThresholdChars = getContext().getSharedPreferences(PREFS_NAME, 0)
+				.getInt(COMPRESS_THRESHOLD_NAME, ContentCodec.DEFAULT_THRESHOLD_CHARS);
+
+		// Opens the database and finishes the upgrades off the main thread
+		mMigrations = new MigrationRunner(getContext(), mOpenHelper,
+				DatabaseHelper.BACKGROUND_STEPS);
+		mMigrations.start(checkTitleKeyLocale());
+
+		// Assumes that any failures will be reported by a thrown exception.
+		return true;
+	}
+
+	/**
+	 * This method is called when a client calls
+	 * {@link android.content.ContentResolver#query(Uri, String[], String, String[], String)}
+	 * . Queries the database and returns a cursor containing the results.
+	 * 
+	 * @return A cursor containing the results of the query. The cursor exists
+	 *         but is empty if the query returns no results or an exception
+	 *         occurs.
+	 * @throws IllegalArgumentException
+	 *             if the incoming URI pattern is invalid.
+	 */
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection,
+			String[] selectionArgs, String sortOrder) {
+		int match = sUriMatcher.match(uri);
+		// The diagnostics are not measured themselves
+		if (match == DIAGNOSTICS) {
+			return mStats.statsCursor();
+		}
+		if (match == DIAGNOSTICS_SLOW) {
+			return mStats.slowLogCursor();
+		}
+		long start = SystemClock.uptimeMillis();
+		Cursor c = doQuery(uri, projection, selection, selectionArgs, sortOrder);
+		String uriKind = getUriKind(match);
+		mStats.record(ProviderStats.OP_QUERY, uriKind,
+				SystemClock.uptimeMillis() - start, c.getCount(), 0, uri, selection);
+		return mStats.countBytes(c, uriKind);
+	}
+
+	/**
+	 * Runs a query, see {@link #query(Uri, String[], String, String[], String)}.
+	 */
+	private Cursor doQuery(Uri uri, String[] projection, String selection,
+			String[] selectionArgs, String sortOrder) {
+
+		// Searches are not table queries, they are ranked by the provider
+		if (sUriMatcher.match(uri) == SEARCH) {
+			return search(uri, projection);
+		}
+
+		// Revisions are rebuilt from their snapshots and deltas
+		if (sUriMatcher.match(uri) == NOTE_REVISIONS
+				|| sUriMatcher.match(uri) == NOTE_REVISION_ID) {
+			List<String> segments = uri.getPathSegments();
+			long noteId = Long.parseLong(segments.get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+			long revisionId = sUriMatcher.match(uri) == NOTE_REVISION_ID ? Long.parseLong(segments
+					.get(NotePad.Revisions.REVISION_ID_PATH_POSITION)) : -1;
+			Cursor c = NoteRevisions.query(mOpenHelper.getReadableDatabase(), noteId,
+					revisionId, projection);
+			// every save of the note adds a revision
+			c.setNotificationUri(getContext().getContentResolver(), getNoteUri(Long.toString(noteId)));
+			return c;
+		}
+
+		// Constructs a new query builder and sets its table name
+		SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+		qb.setTables(NotePad.Notes.TABLE_NAME);
+
+		/**
+		 * Choose the projection and adjust the "where" clause based on URI
+		 * pattern-matching.
+		 */
+		switch (sUriMatcher.match(uri)) {
 		// If the incoming URI is for notes, chooses the Notes projection
 		case NOTES:
 			qb.setProjectionMap(sNotesProjectionMap);
+			appendPageWhere(qb, uri, false);
 			break;
 
 		/*
@@ -322,10 +1722,26 @@ public class NotePadProvider extends ContentProvider implements
 			qb.appendWhere(NotePad.Notes.COLUMN_NAME_FOLDER + " = ");
 			qb.appendWhereEscapeString(uri.getPathSegments().get(
 					NotePad.Notes.FOLDER_NAME_PATH_POSITION));
+			appendPageWhere(qb, uri, true);
 			break;
 		case FOLDERS:
+			qb.setTables(NotePad.Notes.FOLDERS_TABLE_NAME);
 			qb.setProjectionMap(sFoldersProjectionMap);
-			qb.setDistinct(true);
+			if (TextUtils.isEmpty(sortOrder)) {
+				sortOrder = NotePad.Notes.DEFAULT_FOLDERS_SORT_ORDER;
+			}
+			break;
+		case CHANGES:
+			qb.setTables(NotePad.Changes.TABLE_NAME);
+			qb.setProjectionMap(sChangesProjectionMap);
+			String since = uri.getQueryParameter(NotePad.Changes.PARAM_SINCE);
+			if (since != null) {
+				try {
+					qb.appendWhere(NotePad.Changes._ID + " > " + Long.parseLong(since));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Bad sequence number in " + uri);
+				}
+			}
 			break;
 
 		default:
@@ -334,9 +1750,22 @@ public class NotePadProvider extends ContentProvider implements
 			throw new IllegalArgumentException("Unknown URI " + uri);
 		}
 
+		// Only joins the bodies when the content of the notes is read
+		if (NotePad.Notes.TABLE_NAME.equals(qb.getTables())
+				&& readsBody(projection, selection, sortOrder)) {
+			qb.setTables(NOTES_WITH_BODIES_TABLES);
+		}
+
 		String orderBy;
+		String limit = getPageLimit(uri);
+		// The change log is always read in sequence
+		if (sUriMatcher.match(uri) == CHANGES) {
+			orderBy = NotePad.Changes.DEFAULT_SORT_ORDER;
+		// Pages always use the order their keys are based on
+		} else if (limit != null || uri.getQueryParameter(NotePad.Notes.PARAM_SORT) != null) {
+			orderBy = NotePad.Notes.getSortOrder(getSort(uri));
 		// If no sort order is specified, uses the default
-		if (TextUtils.isEmpty(sortOrder)) {
+		} else if (TextUtils.isEmpty(sortOrder)) {
 			orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
 		} else {
 			// otherwise, uses the incoming sort order
@@ -353,21 +1782,779 @@ public class NotePadProvider extends ContentProvider implements
 		 * contains null. If no records were selected, then the Cursor object is
 		 * empty, and Cursor.getCount() returns 0.
 		 */
+		long start = SystemClock.uptimeMillis();
 		Cursor c = qb.query(db, // The database to query
 				projection, // The columns to return from the query
 				selection, // The columns for the where clause
 				selectionArgs, // The values for the where clause
 				null, // don't group the rows
 				null, // don't filter by row groups
-				orderBy // The sort order
+				orderBy, // The sort order
+				limit // The page size, or null for all rows
 				);
+		// the query runs when the first window is filled
+		c.getCount();
+		mReaderStats.add(SystemClock.uptimeMillis() - start);
+
+		// Compressed contents are only decompressed as they are read
+		if (NOTES_WITH_BODIES_TABLES.equals(qb.getTables())) {
+			int noteIndex = c.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+			if (noteIndex >= 0) {
+				c = new ContentCodec.DecodingCursor(c, noteIndex);
+			}
+		}
 
 		// Tells the Cursor what URI to watch, so it knows when its source data
-		// changes
-		c.setNotificationUri(getContext().getContentResolver(), uri);
+		// changes. Any change to the notes adds to the change log.
+		c.setNotificationUri(getContext().getContentResolver(),
+				sUriMatcher.match(uri) == CHANGES ? NotePad.Notes.CONTENT_URI : uri);
 		return c;
 	}
 
+	private static String getUriKind(int match) {
+		return match >= 0 && match < URI_KINDS.length ? URI_KINDS[match] : URI_KINDS[0];
+	}
+
+	/**
+	 * Computes the title keys again when the locale changes
+	 */
+	@Override
+	public void onConfigurationChanged(Configuration newConfig) {
+		super.onConfigurationChanged(newConfig);
+		String[] steps = checkTitleKeyLocale();
+		if (steps.length > 0) {
+			mMigrations.start(steps);
+		}
+	}
+
+	/**
+	 * Remembers the locale of the device for the title keys and returns the
+	 * steps to run if it changed since the keys were computed.
+	 */
+	private String[] checkTitleKeyLocale() {
+		SharedPreferences prefs = getContext().getSharedPreferences(PREFS_NAME, 0);
+		String locale = Locale.getDefault().toString();
+		String keyLocale = prefs.getString(TITLE_KEY_LOCALE_NAME, null);
+		if (locale.equals(keyLocale)) {
+			return new String[0];
+		}
+		prefs.edit().putString(TITLE_KEY_LOCALE_NAME, locale).commit();
+		// without a locale, the keys are new or scheduled by the upgrade
+		return keyLocale == null ? new String[0]
+				: new String[] { DatabaseHelper.STEP_TITLE_KEYS };
+	}
+
+	/**
+	 * Returns the hash a content is stored under, the hexadecimal SHA-1 of
+	 * its UTF-8 bytes. A null content is stored as the empty one.
+	 */
+	static String hashContent(String text) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] bytes = digest.digest((text == null ? "" : text).getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(bytes.length * 2);
+			for (byte b : bytes) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Adds a content to the contents table, unless a note already has it,
+	 * and returns its hash. The content counts no reference until a body
+	 * refers to it. A content longer than the compression threshold is
+	 * stored compressed, if that makes it smaller.
+	 */
+	private static String storeContent(SQLiteDatabase db, String text) {
+		if (text == null) {
+			text = "";
+		}
+		String hash = hashContent(text);
+		ContentValues values = new ContentValues();
+		values.put(CONTENTS_COLUMN_NAME_HASH, hash);
+		int threshold = sCompressThresholdChars;
+		byte[] data = threshold > 0 && text.length() > threshold
+				? ContentCodec.encode(text) : null;
+		if (data != null) {
+			values.put(NotePad.Notes.COLUMN_NAME_NOTE, data);
+		} else {
+			values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+		}
+		db.insertWithOnConflict(CONTENTS_TABLE_NAME, null, values,
+				SQLiteDatabase.CONFLICT_IGNORE);
+		return hash;
+	}
+
+	/**
+	 * Indexes the content of the notes selected by a WHERE clause, if the
+	 * content is stored compressed, which the search triggers cannot read.
+	 */
+	private static void indexCompressedContent(SQLiteDatabase db, String hash,
+			String text, String notesWhere, String[] whereArgs) {
+		if (DatabaseUtils.longForQuery(db, "SELECT typeof("
+				+ NotePad.Notes.COLUMN_NAME_NOTE + ") = 'blob' FROM "
+				+ CONTENTS_TABLE_NAME + " WHERE " + CONTENTS_COLUMN_NAME_HASH
+				+ " = ?", new String[] { hash }) == 0) {
+			return;
+		}
+		String notes = "SELECT " + NotePad.Notes._ID + " FROM "
+				+ NotePad.Notes.TABLE_NAME + notesWhere;
+		Object[] args = whereArgs == null ? new Object[0] : whereArgs;
+		db.execSQL("DELETE FROM " + FTS_TABLE_NAME + " WHERE docid IN (" + notes
+				+ ")", args);
+		Object[] insertArgs = new Object[args.length + 1];
+		insertArgs[0] = text;
+		System.arraycopy(args, 0, insertArgs, 1, args.length);
+		db.execSQL("INSERT INTO " + FTS_TABLE_NAME + " (docid, "
+				+ NotePad.Notes.COLUMN_NAME_TITLE + ", "
+				+ NotePad.Notes.COLUMN_NAME_NOTE + ") SELECT " + NotePad.Notes._ID
+				+ ", " + NotePad.Notes.COLUMN_NAME_TITLE + ", ? FROM "
+				+ NotePad.Notes.TABLE_NAME + " WHERE "
+				+ NotePad.Notes.COLUMN_NAME_DELETED + " = 0 AND "
+				+ NotePad.Notes._ID + " IN (" + notes + ")", insertArgs);
+	}
+
+	/**
+	 * Returns the preview of a content, see
+	 * {@link NotePad.Notes#COLUMN_NAME_PREVIEW}
+	 */
+	static String makePreview(String text) {
+		if (text == null) {
+			return "";
+		}
+		StringBuilder preview = new StringBuilder(NotePad.Notes.PREVIEW_LENGTH);
+		boolean space = false;
+		for (int i = 0; i < text.length(); i++) {
+			char ch = text.charAt(i);
+			if (Character.isWhitespace(ch)) {
+				// leading whitespace is dropped
+				space = preview.length() > 0;
+				continue;
+			}
+			int needed = space ? 2 : 1;
+			if (preview.length() + needed > NotePad.Notes.PREVIEW_LENGTH) {
+				break;
+			}
+			if (space) {
+				preview.append(' ');
+				space = false;
+			}
+			preview.append(ch);
+		}
+		// a character cut in half at the end
+		int end = preview.length();
+		if (end > 0 && Character.isHighSurrogate(preview.charAt(end - 1))) {
+			preview.setLength(end - 1);
+		}
+		return preview.toString();
+	}
+
+	/**
+	 * Returns the collation key of a title in the current locale of the
+	 * device, see {@link NotePad.Notes#COLUMN_NAME_TITLE_KEY}
+	 */
+	static byte[] getTitleKey(String title) {
+		synchronized (sTitleKeyLock) {
+			Locale locale = Locale.getDefault();
+			if (!locale.equals(sTitleCollatorLocale)) {
+				sTitleCollator = Collator.getInstance(locale);
+				sTitleCollatorLocale = locale;
+			}
+			return sTitleCollator.getCollationKey(title != null ? title : "").toByteArray();
+		}
+	}
+
+	/**
+	 * Returns the values of a write with the title key of the title they
+	 * set, or the values themselves if they do not set the title
+	 */
+	private static ContentValues withTitleKey(ContentValues values) {
+		if (!values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)) {
+			return values;
+		}
+		ContentValues keyed = new ContentValues(values);
+		keyed.put(NotePad.Notes.COLUMN_NAME_TITLE_KEY,
+				getTitleKey(values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE)));
+		return keyed;
+	}
+
+	/**
+	 * Returns the bytes of the text and blob values of a write, two per
+	 * character for text.
+	 */
+	private static long countBytes(ContentValues values) {
+		long bytes = 0;
+		if (values != null) {
+			for (Map.Entry<String, Object> value : values.valueSet()) {
+				if (value.getValue() instanceof String) {
+					bytes += 2 * ((String) value.getValue()).length();
+				} else if (value.getValue() instanceof byte[]) {
+					bytes += ((byte[]) value.getValue()).length;
+				}
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns true if a notes query uses the content or the merge base of the
+	 * notes. A null projection returns all the columns.
+	 */
+	private static boolean readsBody(String[] projection, String selection,
+			String sortOrder) {
+		if (projection == null) {
+			return true;
+		}
+		for (String column : projection) {
+			if (NotePad.Notes.COLUMN_NAME_NOTE.equals(column)
+					|| NotePad.Notes.COLUMN_NAME_BASE.equals(column)) {
+				return true;
+			}
+		}
+		return (selection != null && BODY_COLUMN_PATTERN.matcher(selection).find())
+				|| (sortOrder != null && BODY_COLUMN_PATTERN.matcher(sortOrder).find());
+	}
+
+	/**
+	 * Returns the {@link NotePad.Notes#PARAM_LIMIT} of a page URI, or null if
+	 * the URI is not for a page.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the limit is not a positive number.
+	 */
+	private static String getPageLimit(Uri uri) {
+		String limit = uri.getQueryParameter(NotePad.Notes.PARAM_LIMIT);
+		if (limit == null) {
+			return null;
+		}
+		try {
+			if (Integer.parseInt(limit) > 0) {
+				return limit;
+			}
+		} catch (NumberFormatException e) {
+		}
+		throw new IllegalArgumentException("Bad limit in " + uri);
+	}
+
+	/**
+	 * Returns the {@link NotePad.Notes#PARAM_SORT} of a URI, or
+	 * {@link NotePad.Notes#SORT_MODIFIED} if it has none.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the sort mode is not known.
+	 */
+	private static String getSort(Uri uri) {
+		String sort = uri.getQueryParameter(NotePad.Notes.PARAM_SORT);
+		if (sort == null) {
+			return NotePad.Notes.SORT_MODIFIED;
+		}
+		// throws for unknown sort modes
+		NotePad.Notes.getSortKeyColumn(sort);
+		return sort;
+	}
+
+	/**
+	 * Restricts a page query to the notes that come after the key given by
+	 * the URI, in the order of its sort mode. Seeking to the key costs the
+	 * same for every page, unlike an OFFSET which reads and skips all the
+	 * notes of the previous pages.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the key is not a number, or not hexadecimal for titles.
+	 */
+	private static void appendPageWhere(SQLiteQueryBuilder qb, Uri uri,
+			boolean hasWhere) {
+		String afterId = uri.getQueryParameter(NotePad.Notes.PARAM_AFTER_ID);
+		if (afterId == null || getPageLimit(uri) == null) {
+			return;
+		}
+		String sort = getSort(uri);
+		String column = NotePad.Notes.getSortKeyColumn(sort);
+		String afterKey = uri.getQueryParameter(NotePad.Notes.PARAM_AFTER_KEY);
+		long id;
+		String key;
+		try {
+			id = Long.parseLong(afterId);
+			if (NotePad.Notes.SORT_TITLE.equals(sort) && afterKey == null) {
+				// a note without a title key yet; those sort first, then the
+				// others in order
+				qb.appendWhere((hasWhere ? " AND " : "") + "(" + column
+						+ " IS NOT NULL OR (" + column + " IS NULL AND "
+						+ NotePad.Notes._ID + " > " + id + "))");
+				return;
+			}
+			if (NotePad.Notes.SORT_TITLE.equals(sort)) {
+				// a blob literal, so the comparison can use the index
+				if (afterKey == null || !HEX_KEY_PATTERN.matcher(afterKey).matches()) {
+					throw new NumberFormatException(afterKey);
+				}
+				key = "X'" + afterKey + "'";
+			} else {
+				key = Long.toString(Long.parseLong(afterKey));
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad page key in " + uri);
+		}
+		String after = NotePad.Notes.isAscending(sort) ? " > " : " < ";
+		qb.appendWhere((hasWhere ? " AND " : "") + "(" + column + after + key
+				+ " OR (" + column + " = " + key + " AND " + NotePad.Notes._ID
+				+ after + id + "))");
+	}
+
+	/**
+	 * Handles the provider methods of the {@link NotePad} contract.
+	 */
+	@Override
+	public Bundle call(String method, String arg, Bundle extras) {
+		if (NotePad.METHOD_CHECKPOINT.equals(method)) {
+			// a passive checkpoint never waits for readers
+			DatabaseHelper.runPragma(mOpenHelper.getWritableDatabase(),
+					"PRAGMA wal_checkpoint");
+			return null;
+		}
+		if (NotePad.METHOD_READER_STATS.equals(method)) {
+			return mReaderStats.toBundle(NotePad.ARG_RESET.equals(arg));
+		}
+		if (NotePad.METHOD_SET_SLOW_THRESHOLD.equals(method)) {
+			try {
+				mStats.setSlowThresholdMillis(Long.parseLong(arg));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad threshold " + arg);
+			}
+			return null;
+		}
+		if (NotePad.METHOD_SET_COMPRESSION_THRESHOLD.equals(method)) {
+			int threshold;
+			try {
+				threshold = Integer.parseInt(arg);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad threshold " + arg);
+			}
+			sCompressThresholdChars = threshold;
+			getContext().getSharedPreferences(PREFS_NAME, 0).edit()
+					.putInt(COMPRESS_THRESHOLD_NAME, threshold).commit();
+			// contents stored below a higher threshold are compressed now
+			mMigrations.start(DatabaseHelper.STEP_COMPRESS_CONTENTS);
+			return null;
+		}
+		if (NotePad.METHOD_RESET_DIAGNOSTICS.equals(method)) {
+			mStats.reset();
+			return null;
+		}
+		if (NotePad.METHOD_COMPACT.equals(method)) {
+			return compact();
+		}
+		if (NotePad.METHOD_IMPORT.equals(method)) {
+			return importArchive(arg);
+		}
+		if (NotePad.METHOD_BEGIN_BATCH.equals(method)) {
+			beginBatch();
+			return null;
+		}
+		if (NotePad.METHOD_END_BATCH.equals(method)) {
+			endBatch();
+			return null;
+		}
+		return super.call(method, arg, extras);
+	}
+
+	/**
+	 * Compacts the deleted notes, see {@link NotePad#METHOD_COMPACT}. The
+	 * sync purges a deleted note once it deleted its Dropbox file; this
+	 * purges the ones that never had a file, or whose sync never came.
+	 */
+	private Bundle compact() {
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		int stripped;
+		int purged;
+		db.beginTransaction();
+		try {
+			// notes deleted before the tombstone trigger existed
+			ContentValues strip = new ContentValues();
+			strip.put(BODIES_COLUMN_NAME_HASH, storeContent(db, ""));
+			strip.putNull(BODIES_COLUMN_NAME_NOTE);
+			stripped = db.update(BODIES_TABLE_NAME, strip,
+					"(" + BODIES_COLUMN_NAME_HASH + " IS NULL OR " + BODIES_COLUMN_NAME_HASH
+							+ " != '" + EMPTY_CONTENT_HASH + "') AND "
+							+ BODIES_COLUMN_NAME_NOTE_ID + " IN (SELECT "
+							+ NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME
+							+ " WHERE " + NotePad.Notes.COLUMN_NAME_DELETED + " != 0)",
+					null);
+			purged = db.delete(NotePad.Notes.TABLE_NAME,
+					NotePad.Notes.COLUMN_NAME_DELETED + " != 0 AND ("
+							+ NotePad.Notes.COLUMN_NAME_FILE_NAME + " IS NULL OR trim("
+							+ NotePad.Notes.COLUMN_NAME_FILE_NAME + ") = '' OR "
+							+ NotePad.Notes.COLUMN_NAME_DELETED_AT + " < ?)",
+					new String[] { Long.toString(System.currentTimeMillis()
+							- NotePad.TOMBSTONE_MAX_AGE_MILLIS) });
+			// contents stored for an update that matched no note
+			db.delete(CONTENTS_TABLE_NAME, CONTENTS_COLUMN_NAME_REFS + " <= 0", null);
+			// the change log only keeps its newest rows
+			db.delete(NotePad.Changes.TABLE_NAME, NotePad.Changes._ID
+					+ " <= (SELECT max(" + NotePad.Changes._ID + ") FROM "
+					+ NotePad.Changes.TABLE_NAME + ") - " + CHANGES_MAX_ROWS, null);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		pruneStreamFiles(db);
+		if (purged > 0) {
+			notifyChanges(NotePad.Notes.CONTENT_URI, NotePad.Notes.FOLDERS_URI);
+		}
+
+		Bundle result = new Bundle();
+		result.putInt(NotePad.KEY_COMPACT_STRIPPED, stripped);
+		result.putInt(NotePad.KEY_COMPACT_PURGED, purged);
+		result.putLong(NotePad.KEY_COMPACT_FREED_PAGES, vacuum(db));
+		return result;
+	}
+
+	/**
+	 * Returns the free pages of the database to the file system. The first
+	 * time, the database is switched to incremental auto-vacuum, which takes
+	 * a full VACUUM; after that only the free pages are released.
+	 * 
+	 * @return the number of pages freed
+	 */
+	private static long vacuum(SQLiteDatabase db) {
+		try {
+			long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+			if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != 2) {
+				db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+				db.execSQL("VACUUM");
+			} else if (freePages > 0) {
+				// each step of the pragma frees one page
+				Cursor c = db.rawQuery("PRAGMA incremental_vacuum", null);
+				try {
+					c.getCount();
+				} finally {
+					c.close();
+				}
+			}
+			return freePages - DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+		} catch (SQLiteException e) {
+			// such as a reader holding the database, the next compaction
+			// frees the pages
+			Log.w(TAG, "Vacuum failed", e);
+			return 0;
+		}
+	}
+
+	/**
+	 * Applies the operations in one transaction and sends their notifications,
+	 * merged, once it is committed.
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(
+			ArrayList<ContentProviderOperation> operations)
+			throws OperationApplicationException {
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		beginBatch();
+		db.beginTransaction();
+		try {
+			ContentProviderResult[] results = super.applyBatch(operations);
+			db.setTransactionSuccessful();
+			return results;
+		} finally {
+			db.endTransaction();
+			endBatch();
+		}
+	}
+
+	/**
+	 * Inserts the notes in one transaction and sends their notifications,
+	 * merged, once it is committed.
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		beginBatch();
+		db.beginTransaction();
+		try {
+			for (ContentValues value : values) {
+				insert(uri, value);
+			}
+			db.setTransactionSuccessful();
+			return values.length;
+		} finally {
+			db.endTransaction();
+			endBatch();
+		}
+	}
+
+	/**
+	 * The notifications held back by the batch of a thread. The URIs of the
+	 * changes of its open transaction are pending, those of the committed
+	 * changes wait for the interval to be over. The committed ones are
+	 * delivered by the handler, so guarded by the batch.
+	 */
+	private final class Batch implements Runnable {
+		int depth;
+		final LinkedHashSet<Uri> pending = new LinkedHashSet<Uri>();
+		final LinkedHashSet<Uri> committed = new LinkedHashSet<Uri>();
+		long lastNotifyTime = SystemClock.uptimeMillis();
+		boolean flushPosted;
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				flushPosted = false;
+			}
+			flushNotifications(this);
+		}
+	}
+
+	private void beginBatch() {
+		Batch batch = mBatches.get();
+		if (batch == null) {
+			batch = new Batch();
+			mBatches.set(batch);
+		}
+		batch.depth++;
+	}
+
+	private void endBatch() {
+		Batch batch = mBatches.get();
+		if (--batch.depth > 0) {
+			return;
+		}
+		mBatches.remove();
+		synchronized (batch) {
+			batch.committed.addAll(batch.pending);
+			batch.pending.clear();
+		}
+		flushNotifications(batch);
+	}
+
+	/**
+	 * Drops the URIs collected by the batch of this thread since its last
+	 * transaction was committed, for the changes of a transaction that was
+	 * rolled back.
+	 */
+	private void discardNotifications() {
+		Batch batch = mBatches.get();
+		if (batch != null) {
+			synchronized (batch) {
+				batch.pending.clear();
+			}
+		}
+	}
+
+	/**
+	 * Notifies the observers of the given URIs. During a batch of this thread
+	 * the URIs are only collected, and delivered at most once per
+	 * {@link #BATCH_NOTIFY_INTERVAL_MILLIS} and never from inside a
+	 * transaction, so observers do not query data that is not committed yet.
+	 * The URIs committed within an interval are delivered when it is over,
+	 * even if the batch writes nothing more. Null URIs are ignored.
+	 */
+	private void notifyChanges(Uri... uris) {
+		Batch batch = mBatches.get();
+		if (batch == null) {
+			for (Uri uri : uris) {
+				if (uri != null) {
+					getContext().getContentResolver().notifyChange(uri, null);
+				}
+			}
+			return;
+		}
+		synchronized (batch) {
+			for (Uri uri : uris) {
+				if (uri != null) {
+					batch.pending.add(uri);
+				}
+			}
+			if (mOpenHelper.getWritableDatabase().inTransaction()) {
+				return;
+			}
+			batch.committed.addAll(batch.pending);
+			batch.pending.clear();
+			long wait = batch.lastNotifyTime + BATCH_NOTIFY_INTERVAL_MILLIS
+					- SystemClock.uptimeMillis();
+			if (wait > 0) {
+				if (!batch.committed.isEmpty() && !batch.flushPosted) {
+					batch.flushPosted = mHandler.postDelayed(batch, wait);
+				}
+				return;
+			}
+		}
+		flushNotifications(batch);
+	}
+
+	/**
+	 * Delivers the committed notifications of a batch, and cancels their
+	 * delayed delivery.
+	 */
+	private void flushNotifications(Batch batch) {
+		ArrayList<Uri> ready;
+		synchronized (batch) {
+			if (batch.flushPosted) {
+				mHandler.removeCallbacks(batch);
+				batch.flushPosted = false;
+			}
+			if (batch.committed.isEmpty()) {
+				return;
+			}
+			ready = new ArrayList<Uri>(batch.committed);
+			batch.committed.clear();
+			batch.lastNotifyTime = SystemClock.uptimeMillis();
+		}
+		for (Uri uri : ready) {
+			getContext().getContentResolver().notifyChange(uri, null);
+		}
+	}
+
+	private static Uri getNoteUri(String noteId) {
+		return Uri.withAppendedPath(NotePad.Notes.CONTENT_ID_URI_BASE, noteId);
+	}
+
+	/**
+	 * Returns the URI of the notes of a folder, or null for no folder.
+	 */
+	private static Uri getFolderUri(String folder) {
+		if (folder == null) {
+			return null;
+		}
+		return Uri.withAppendedPath(NotePad.Notes.FOLDER_NAME_URI_BASE, Uri.encode(folder));
+	}
+
+	/**
+	 * Measures how long queries take until their first window of rows is
+	 * filled, which includes any time spent waiting for the database.
+	 */
+	private static final class ReaderStats {
+		private int mQueries;
+		private long mTotalMillis;
+		private long mMaxMillis;
+
+		synchronized void add(long millis) {
+			mQueries++;
+			mTotalMillis += millis;
+			if (millis > mMaxMillis) {
+				mMaxMillis = millis;
+			}
+		}
+
+		synchronized Bundle toBundle(boolean reset) {
+			Bundle stats = new Bundle();
+			stats.putInt(NotePad.KEY_READER_QUERIES, mQueries);
+			stats.putLong(NotePad.KEY_READER_WAIT_TOTAL_MILLIS, mTotalMillis);
+			stats.putLong(NotePad.KEY_READER_WAIT_MAX_MILLIS, mMaxMillis);
+			if (reset) {
+				mQueries = 0;
+				mTotalMillis = 0;
+				mMaxMillis = 0;
+			}
+			return stats;
+		}
+	}
+
+	/**
+	 * Runs a full-text search for the terms of a {@link NotePad.Notes#SEARCH_URI}.
+	 * Each match counts once, or {@link #TITLE_MATCH_WEIGHT} times if it is in
+	 * the title; notes with the same rank are ordered by modification date.
+	 * 
+	 * @return the matching notes, best first. The cursor is empty if there are
+	 *         no search terms or they are not a valid FTS query.
+	 * @throws IllegalArgumentException
+	 *             if the projection has a column searches do not return.
+	 */
+	private Cursor search(Uri uri, String[] projection) {
+		if (projection == null) {
+			projection = SEARCH_COLUMNS;
+		}
+		int[] columns = new int[projection.length];
+		for (int i = 0; i < projection.length; i++) {
+			columns[i] = -1;
+			for (int j = 0; j < SEARCH_COLUMNS.length; j++) {
+				if (SEARCH_COLUMNS[j].equals(projection[i])) {
+					columns[i] = j;
+					break;
+				}
+			}
+			if (columns[i] == -1) {
+				throw new IllegalArgumentException("Invalid search column " + projection[i]);
+			}
+		}
+
+		ArrayList<Object[]> rows = new ArrayList<Object[]>();
+		String terms = uri.getQueryParameter(NotePad.Notes.PARAM_SEARCH_QUERY);
+		if (!TextUtils.isEmpty(terms) && !TextUtils.isEmpty(terms.trim())) {
+			SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+			Cursor c = null;
+			try {
+				c = db.rawQuery(SEARCH_SQL, new String[] { terms });
+				while (c.moveToNext()) {
+					Object[] row = new Object[SEARCH_COLUMNS.length];
+					row[0] = c.getLong(0);
+					row[1] = c.getString(1);
+					row[2] = c.getString(2);
+					row[3] = c.getLong(3);
+					row[4] = c.getString(4);
+					row[SEARCH_RANK_INDEX] = rankFromOffsets(c.getString(5));
+					rows.add(row);
+				}
+			} catch (SQLiteException e) {
+				// malformed FTS query, such as unbalanced quotes
+				Log.w(TAG, "Bad search " + terms, e);
+				rows.clear();
+			} finally {
+				if (c != null) {
+					c.close();
+				}
+			}
+			Collections.sort(rows, new Comparator<Object[]>() {
+				@Override
+				public int compare(Object[] lhs, Object[] rhs) {
+					int l = (Integer) lhs[SEARCH_RANK_INDEX];
+					int r = (Integer) rhs[SEARCH_RANK_INDEX];
+					if (l != r) {
+						return l > r ? -1 : 1;
+					}
+					long lm = (Long) lhs[SEARCH_MODIFIED_INDEX];
+					long rm = (Long) rhs[SEARCH_MODIFIED_INDEX];
+					return lm > rm ? -1 : (lm == rm ? 0 : 1);
+				}
+			});
+		}
+
+		MatrixCursor result = new MatrixCursor(projection, rows.size());
+		for (Object[] row : rows) {
+			Object[] projected = new Object[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				projected[i] = row[columns[i]];
+			}
+			result.addRow(projected);
+		}
+		// any change to the notes can change the results
+		result.setNotificationUri(getContext().getContentResolver(),
+				NotePad.Notes.CONTENT_URI);
+		return result;
+	}
+
+	/**
+	 * Computes the rank of a search result from the output of the FTS
+	 * offsets() function: four integers per match, the first being the column
+	 * the match is in.
+	 */
+	private static int rankFromOffsets(String offsets) {
+		if (offsets == null) {
+			return 0;
+		}
+		String[] values = TextUtils.split(offsets.trim(), " ");
+		int rank = 0;
+		for (int i = 0; i + 3 < values.length; i += 4) {
+			rank += values[i].equals("0") ? TITLE_MATCH_WEIGHT : 1;
+		}
+		return rank;
+	}
+
 	/**
 	 * This is called when a client calls
 	 * {@link android.content.ContentResolver#getType(Uri)}. Returns the MIME
@@ -405,6 +2592,23 @@ public class NotePadProvider extends ContentProvider implements
 		case FOLDERS:
 			return NotePad.Notes.CONTENT_FOLDERS_TYPE;
 
+		// Search results are a list of notes
+		case SEARCH:
+			return NotePad.Notes.CONTENT_TYPE;
+
+		case CHANGES:
+			return NotePad.Changes.CONTENT_TYPE;
+
+		case DIAGNOSTICS:
+		case DIAGNOSTICS_SLOW:
+			return NotePad.Diagnostics.CONTENT_TYPE;
+
+		case NOTE_REVISIONS:
+			return NotePad.Revisions.CONTENT_TYPE;
+
+		case NOTE_REVISION_ID:
+			return NotePad.Revisions.CONTENT_ITEM_TYPE;
+
 		// If the URI pattern doesn't match any permitted patterns, throws
 		// an exception.
 		default:
@@ -416,8 +2620,14 @@ public class NotePadProvider extends ContentProvider implements
 	 * This describes the MIME types that are supported for opening a note URI
 	 * as a stream.
 	 */
-	static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
-			new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
+	static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
+			new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
+
+	/**
+	 * The MIME types of a list of notes opened as a stream, an archive
+	 */
+	static ClipDescription ARCHIVE_STREAM_TYPES = new ClipDescription(null,
+			new String[] { NotePad.ARCHIVE_MIME_TYPE });
 
 	/**
 	 * Returns the types of available data streams. URIs to specific notes are
@@ -441,12 +2651,20 @@ public class NotePadProvider extends ContentProvider implements
 		 */
 		switch (sUriMatcher.match(uri)) {
 
-		// If the pattern is for notes, folders or folder name, return null. Data
-		// streams are not
-		// supported for this type of URI.
+		// The notes and the notes of a folder are exported as an archive
 		case NOTES:
 		case FOLDER_NAME:
+			return ARCHIVE_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
+
+		// If the pattern is for folders, return null. Data streams are not
+		// supported for this type of URI.
 		case FOLDERS:
+		case SEARCH:
+		case CHANGES:
+		case DIAGNOSTICS:
+		case DIAGNOSTICS_SLOW:
+		case NOTE_REVISIONS:
+		case NOTE_REVISION_ID:
 			return null;
 
 			// If the pattern is for note IDs and the MIME filter is text/plain,
@@ -487,9 +2705,38 @@ public class NotePadProvider extends ContentProvider implements
 		// Checks to see if the MIME type filter matches a supported MIME type.
 		String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
 
+		// Archives are written by a thread of their own, a page of notes at a
+		// time
+		int match = sUriMatcher.match(uri);
+		if (mimeTypes != null && (match == NOTES || match == FOLDER_NAME)) {
+			String folder = match == FOLDER_NAME ? uri.getPathSegments().get(
+					NotePad.Notes.FOLDER_NAME_PATH_POSITION) : null;
+			return new AssetFileDescriptor(openPipeHelper(uri, mimeTypes[0],
+					opts, folder, new PipeDataWriter<String>() {
+						@Override
+						public void writeDataToPipe(ParcelFileDescriptor output,
+								Uri uri, String mimeType, Bundle opts, String folder) {
+							writeArchive(output, folder);
+						}
+					}), 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+		}
+
 		// If the MIME type is supported
 		if (mimeTypes != null) {
 
+			// Large notes are read straight from their stream file
+			File streamFile = openStreamFile(uri.getPathSegments().get(
+					NotePad.Notes.NOTE_ID_PATH_POSITION));
+			if (streamFile != null) {
+				try {
+					return new AssetFileDescriptor(ParcelFileDescriptor.open(
+							streamFile, ParcelFileDescriptor.MODE_READ_ONLY), 0,
+							AssetFileDescriptor.UNKNOWN_LENGTH);
+				} catch (FileNotFoundException e) {
+					// removed since, the note is written to a pipe instead
+				}
+			}
+
 			// Retrieves the note for this URI. Uses the query method defined
 			// for this provider,
 			// rather than using the database query method.
@@ -526,6 +2773,382 @@ public class NotePadProvider extends ContentProvider implements
 		return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
 	}
 
+	/**
+	 * Opens a note ID URI for reading, as a text/plain stream.
+	 * 
+	 * @throws FileNotFoundException
+	 *             if the URI is not for a note, or the mode is not "r".
+	 */
+	@Override
+	public ParcelFileDescriptor openFile(Uri uri, String mode)
+			throws FileNotFoundException {
+		if (sUriMatcher.match(uri) != NOTE_ID || !"r".equals(mode)) {
+			throw new FileNotFoundException("Can only read notes: " + uri
+					+ " " + mode);
+		}
+		return openTypedAssetFile(uri, ClipDescription.MIMETYPE_TEXT_PLAIN,
+				null).getParcelFileDescriptor();
+	}
+
+	/**
+	 * Returns the stream file of a version of a note.
+	 */
+	private File getStreamFile(String noteId, long version) {
+		return new File(new File(getContext().getFilesDir(), STREAM_DIR_NAME),
+				noteId + "-" + version + STREAM_FILE_SUFFIX);
+	}
+
+	/**
+	 * Returns the stream file of the current version of a note, writing it
+	 * first if the note is large and has no file for this version yet. The
+	 * files of its older versions are removed then.
+	 *
+	 * @return the file, or null if the note is small, deleted or missing, or
+	 *         its file cannot be written
+	 */
+	private File openStreamFile(String noteId) {
+		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+		long version;
+		Cursor c = db.rawQuery("SELECT n." + NotePad.Notes.COLUMN_NAME_VERSION
+				+ " FROM " + NotePad.Notes.TABLE_NAME + " n" + NOTE_CONTENT_JOIN
+				+ " WHERE n." + NotePad.Notes._ID + " = ? AND n."
+				+ NotePad.Notes.COLUMN_NAME_DELETED + " = 0 AND (typeof("
+				+ JOINED_CONTENT + ") = 'blob' OR length(" + JOINED_CONTENT
+				+ ") > " + STREAM_FILE_THRESHOLD_CHARS + ")", new String[] { noteId });
+		try {
+			if (!c.moveToFirst()) {
+				return null;
+			}
+			version = c.getLong(0);
+		} finally {
+			c.close();
+		}
+		File file = getStreamFile(noteId, version);
+		if (file.exists()) {
+			return file;
+		}
+
+		// Reads the note at the version the file is named after
+		String title;
+		String note;
+		c = db.rawQuery("SELECT n." + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+				+ JOINED_CONTENT + " FROM "
+				+ NotePad.Notes.TABLE_NAME + " n" + NOTE_CONTENT_JOIN + " WHERE n."
+				+ NotePad.Notes._ID + " = ? AND n." + NotePad.Notes.COLUMN_NAME_VERSION
+				+ " = ?", new String[] { noteId, Long.toString(version) });
+		try {
+			if (!c.moveToFirst()) {
+				// changed since, the note is written to a pipe instead
+				return null;
+			}
+			title = c.getString(0);
+			note = ContentCodec.read(c, 1);
+		} finally {
+			c.close();
+		}
+		if (note == null || !writeStreamFile(file, noteId, title, note)) {
+			return null;
+		}
+		deleteStreamFiles(noteId, file.getName());
+		return file;
+	}
+
+	/**
+	 * Removes the stream files of a note.
+	 *
+	 * @param keep
+	 *            the name of a file that is kept, or null
+	 */
+	private void deleteStreamFiles(String noteId, String keep) {
+		File dir = new File(getContext().getFilesDir(), STREAM_DIR_NAME);
+		String[] names = dir.list();
+		if (names == null) {
+			return;
+		}
+		String prefix = noteId + "-";
+		for (String name : names) {
+			if (name.startsWith(prefix) && name.endsWith(STREAM_FILE_SUFFIX)
+					&& !name.equals(keep)) {
+				new File(dir, name).delete();
+			}
+		}
+	}
+
+	/**
+	 * Writes a stream file in the format of {@link #writeDataToPipe}. The file
+	 * is written under a temporary name and renamed, so readers never see
+	 * part of it.
+	 *
+	 * @return whether the file was written
+	 */
+	private boolean writeStreamFile(File file, String noteId, String title,
+			String note) {
+		File temp = null;
+		Writer writer = null;
+		try {
+			File dir = file.getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Cannot create " + dir);
+			}
+			temp = File.createTempFile(noteId, ".tmp", dir);
+			writer = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(temp), "UTF-8"));
+			writer.write(String.valueOf(title));
+			writer.write("\n\n");
+			writer.write(note);
+			writer.write('\n');
+			writer.close();
+			writer = null;
+			if (!temp.renameTo(file)) {
+				throw new IOException("Cannot rename " + temp + " to " + file);
+			}
+			temp = null;
+			return true;
+		} catch (IOException e) {
+			// the note is written to a pipe instead
+			Log.w(TAG, "Failed to write the stream of note " + noteId, e);
+			return false;
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+				}
+			}
+			if (temp != null) {
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Writes the notes that are not deleted to an archive, see
+	 * {@link NotePad#ARCHIVE_MIME_TYPE}. The notes are read a page at a time,
+	 * in order of their _ID, so an export of any size holds one page in
+	 * memory and no query rereads the rows before its page.
+	 *
+	 * @param folder
+	 *            the folder whose notes are written, or null for all notes
+	 */
+	private void writeArchive(ParcelFileDescriptor output, String folder) {
+		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+		String[] columns = new String[ARCHIVE_COLUMNS.length + 1];
+		columns[0] = NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID;
+		for (int i = 0; i < ARCHIVE_COLUMNS.length; i++) {
+			columns[i + 1] = sNotesProjectionMap.get(ARCHIVE_COLUMNS[i]);
+		}
+		String where = NotePad.Notes.COLUMN_NAME_DELETED + " = 0 AND "
+				+ NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " > ?";
+		if (folder != null) {
+			where += " AND " + NotePad.Notes.COLUMN_NAME_FOLDER + " = "
+					+ DatabaseUtils.sqlEscapeString(folder);
+		}
+		String limit = Integer.toString(ARCHIVE_BATCH_SIZE);
+		FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
+		Writer writer = null;
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(fout, "UTF-8"));
+			LinkedHashMap<String, Object> note = new LinkedHashMap<String, Object>();
+			long lastId = 0;
+			int count;
+			do {
+				Cursor c = db.query(NOTES_WITH_BODIES_TABLES, columns, where,
+						new String[] { Long.toString(lastId) }, null, null,
+						NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID, limit);
+				try {
+					count = c.getCount();
+					while (c.moveToNext()) {
+						lastId = c.getLong(0);
+						note.put(NotePad.Notes.COLUMN_NAME_TITLE, c.getString(1));
+						note.put(NotePad.Notes.COLUMN_NAME_NOTE, ContentCodec.read(c, 2));
+						note.put(NotePad.Notes.COLUMN_NAME_FOLDER, c.getString(3));
+						note.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, c.getLong(4));
+						note.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, c.getLong(5));
+						writer.write(JSONObject.toJSONString(note));
+						writer.write('\n');
+					}
+				} finally {
+					c.close();
+				}
+			} while (count == ARCHIVE_BATCH_SIZE);
+		} catch (IOException e) {
+			// the reader closed the stream
+			Log.w(TAG, "Archive not completed", e);
+		} finally {
+			if (writer != null) {
+				try {
+					writer.flush();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Imports the notes of an archive, see {@link NotePad#METHOD_IMPORT}.
+	 * Only one line of the archive is held in memory at a time, so the
+	 * archive is read twice: every line is checked before the first note is
+	 * inserted.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a line is not a note, and nothing was imported
+	 * @throws IllegalStateException
+	 *             if the import stopped after some notes were imported, with
+	 *             their number in the message
+	 */
+	private Bundle importArchive(String source) {
+		if (source == null) {
+			throw new IllegalArgumentException("No archive");
+		}
+		JSONParser parser = new JSONParser();
+		int total = 0;
+		int lineNumber = 0;
+		BufferedReader reader = openArchive(source);
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				lineNumber++;
+				if (line.trim().length() > 0) {
+					parseArchiveLine(parser, line, lineNumber);
+					total++;
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Cannot read " + source, e);
+		} finally {
+			try {
+				reader.close();
+			} catch (IOException e) {
+			}
+		}
+
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		int imported = 0;
+		lineNumber = 0;
+		reader = openArchive(source);
+		beginBatch();
+		try {
+			String line = reader.readLine();
+			while (line != null) {
+				int inserted = 0;
+				boolean committed = false;
+				try {
+					db.beginTransaction();
+					try {
+						for (; line != null && inserted < ARCHIVE_BATCH_SIZE; line = reader.readLine()) {
+							lineNumber++;
+							if (line.trim().length() == 0) {
+								continue;
+							}
+							insert(NotePad.Notes.CONTENT_URI, parseArchiveLine(parser, line, lineNumber));
+							inserted++;
+						}
+						db.setTransactionSuccessful();
+					} finally {
+						db.endTransaction();
+					}
+					committed = true;
+				} finally {
+					if (!committed) {
+						// the notes of the batch were rolled back
+						discardNotifications();
+					}
+				}
+				// delivered now or once the interval is over
+				notifyChanges();
+				imported += inserted;
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Imported " + imported + " of " + total
+					+ " notes, then failed to read " + source, e);
+		} catch (RuntimeException e) {
+			throw new IllegalStateException("Imported " + imported + " of " + total
+					+ " notes, then failed at line " + lineNumber + " of " + source, e);
+		} finally {
+			try {
+				reader.close();
+			} catch (IOException e) {
+			}
+			endBatch();
+		}
+		Log.i(TAG, "Imported " + imported + " notes from " + source);
+		Bundle result = new Bundle();
+		result.putInt(NotePad.KEY_IMPORTED, imported);
+		return result;
+	}
+
+	/**
+	 * Opens an archive to import for reading.
+	 */
+	private BufferedReader openArchive(String source) {
+		try {
+			return new BufferedReader(new InputStreamReader(getContext()
+					.getContentResolver().openInputStream(Uri.parse(source)), "UTF-8"));
+		} catch (FileNotFoundException e) {
+			throw new IllegalArgumentException("Cannot open " + source, e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the values of the note of a line of an archive.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the line is not a note
+	 */
+	private static ContentValues parseArchiveLine(JSONParser parser, String line,
+			int lineNumber) {
+		Object parsed;
+		try {
+			parsed = parser.parse(line);
+		} catch (ParseException e) {
+			throw new IllegalArgumentException("Bad archive line " + lineNumber, e);
+		}
+		if (!(parsed instanceof Map)) {
+			throw new IllegalArgumentException("Bad archive line " + lineNumber);
+		}
+		Map<?, ?> note = (Map<?, ?>) parsed;
+		ContentValues values = new ContentValues();
+		for (int i = 0; i < ARCHIVE_COLUMNS.length; i++) {
+			Object value = note.get(ARCHIVE_COLUMNS[i]);
+			if (value instanceof String) {
+				values.put(ARCHIVE_COLUMNS[i], (String) value);
+			} else if (value instanceof Long) {
+				values.put(ARCHIVE_COLUMNS[i], (Long) value);
+			} else if (value != null) {
+				throw new IllegalArgumentException("Bad " + ARCHIVE_COLUMNS[i]
+						+ " in archive line " + lineNumber);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Removes the stream files of versions of notes that are no longer
+	 * current, and of notes that no longer exist or are deleted.
+	 */
+	private void pruneStreamFiles(SQLiteDatabase db) {
+		File dir = new File(getContext().getFilesDir(), STREAM_DIR_NAME);
+		String[] names = dir.list();
+		if (names == null) {
+			return;
+		}
+		for (String name : names) {
+			int dash = name.indexOf('-');
+			if (dash < 0 || !name.endsWith(STREAM_FILE_SUFFIX)
+					|| DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME,
+							NotePad.Notes._ID + " = ? AND "
+									+ NotePad.Notes.COLUMN_NAME_VERSION + " = ? AND "
+									+ NotePad.Notes.COLUMN_NAME_DELETED + " = 0",
+							new String[] { name.substring(0, dash),
+									name.substring(dash + 1, name.length()
+											- STREAM_FILE_SUFFIX.length()) }) == 0) {
+				// also the files of earlier releases, named after the _ID alone
+				new File(dir, name).delete();
+			}
+		}
+	}
+
 	/**
 	 * Implementation of {@link android.content.ContentProvider.PipeDataWriter}
 	 * to perform the actual work of converting the data in one of cursors to a
@@ -571,6 +3194,17 @@ public class NotePadProvider extends ContentProvider implements
 	 */
 	@Override
 	public Uri insert(Uri uri, ContentValues initialValues) {
+		long start = SystemClock.uptimeMillis();
+		Uri noteUri = doInsert(uri, initialValues);
+		mStats.record(ProviderStats.OP_INSERT, getUriKind(sUriMatcher.match(uri)),
+				SystemClock.uptimeMillis() - start, 1, countBytes(initialValues), uri, null);
+		return noteUri;
+	}
+
+	/**
+	 * Inserts a note, see {@link #insert(Uri, ContentValues)}.
+	 */
+	private Uri doInsert(Uri uri, ContentValues initialValues) {
 
 		// Validates the incoming URI. Only the full provider URI is allowed for
 		// inserts.
@@ -620,18 +3254,51 @@ public class NotePadProvider extends ContentProvider implements
 			values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
 		}
 
+		values.put(NotePad.Notes.COLUMN_NAME_TITLE_KEY,
+				getTitleKey(values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE)));
+
+		// The content goes to the contents table, the bodies table refers to
+		// it under the ID of the note and keeps its merge base.
+		String text = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+		ContentValues bodyValues = new ContentValues();
+		values.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+		if (values.containsKey(NotePad.Notes.COLUMN_NAME_BASE)) {
+			bodyValues.put(NotePad.Notes.COLUMN_NAME_BASE,
+					values.getAsString(NotePad.Notes.COLUMN_NAME_BASE));
+			values.remove(NotePad.Notes.COLUMN_NAME_BASE);
+		}
+		values.put(NotePad.Notes.COLUMN_NAME_PREVIEW, makePreview(text));
+
 		// Opens the database object in "write" mode.
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
 		// Performs the insert and returns the ID of the new note.
-		long rowId = db.insert(NotePad.Notes.TABLE_NAME, // The table to insert
-															// into.
-				NotePad.Notes.COLUMN_NAME_NOTE, // A hack, SQLite sets this
-												// column value to null
-												// if values is empty.
-				values // A map of column names, and the values to insert
-						// into the columns.
-				);
+		long rowId;
+		db.beginTransaction();
+		try {
+			rowId = mStatements.insert(db, NotePad.Notes.TABLE_NAME, // The table
+																		// to insert
+																		// into.
+					values // A map of column names, and the values to insert
+							// into the columns.
+					);
+			if (rowId > 0) {
+				bodyValues.put(BODIES_COLUMN_NAME_NOTE_ID, rowId);
+				String hash = storeContent(db, text);
+				bodyValues.put(BODIES_COLUMN_NAME_HASH, hash);
+				if (mStatements.insert(db, BODIES_TABLE_NAME, bodyValues) < 0) {
+					rowId = -1;
+				} else {
+					indexCompressedContent(db, hash, text, " WHERE "
+							+ NotePad.Notes._ID + " = " + rowId, null);
+				}
+			}
+			if (rowId > 0) {
+				db.setTransactionSuccessful();
+			}
+		} finally {
+			db.endTransaction();
+		}
 
 		// If the insert succeeded, the row ID exists.
 		if (rowId > 0) {
@@ -640,9 +3307,11 @@ public class NotePadProvider extends ContentProvider implements
 			Uri noteUri = ContentUris.withAppendedId(
 					NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
 
-			// Notifies observers registered against this provider that the data
-			// changed.
-			getContext().getContentResolver().notifyChange(noteUri, null);
+			// Notifies observers of the note, of its folder and of the folder
+			// list, whose counts changed.
+			String folder = values.getAsString(NotePad.Notes.COLUMN_NAME_FOLDER);
+			notifyChanges(noteUri, getFolderUri(folder != null ? folder : "/"),
+					NotePad.Notes.FOLDERS_URI);
 			return noteUri;
 		}
 
@@ -670,12 +3339,24 @@ public class NotePadProvider extends ContentProvider implements
 	 */
 	@Override
 	public int delete(Uri uri, String where, String[] whereArgs) {
+		long start = SystemClock.uptimeMillis();
+		int count = doDelete(uri, where, whereArgs);
+		mStats.record(ProviderStats.OP_DELETE, getUriKind(sUriMatcher.match(uri)),
+				SystemClock.uptimeMillis() - start, count, 0, uri, where);
+		return count;
+	}
+
+	/**
+	 * Deletes notes, see {@link #delete(Uri, String, String[])}.
+	 */
+	private int doDelete(Uri uri, String where, String[] whereArgs) {
 
 		// Opens the database object in "write" mode.
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 		String finalWhere;
 
 		int count;
+		Uri[] changed;
 
 		// Does the delete based on the incoming URI pattern.
 		switch (sUriMatcher.match(uri)) {
@@ -688,6 +3369,11 @@ public class NotePadProvider extends ContentProvider implements
 					where, // The incoming where clause column names
 					whereArgs // The incoming where clause values
 					);
+			if (count > 0) {
+				pruneStreamFiles(db);
+			}
+			// any note and any folder may have changed
+			changed = new Uri[] { NotePad.Notes.CONTENT_URI, NotePad.Notes.FOLDERS_URI };
 			break;
 			
 		// If the incoming pattern matches the general pattern for folder name, does a
@@ -708,6 +3394,10 @@ public class NotePadProvider extends ContentProvider implements
 
 			// Performs the delete.
 			count = db.delete(NotePad.Notes.TABLE_NAME, finalWhere, whereArgs);
+			if (count > 0) {
+				pruneStreamFiles(db);
+			}
+			changed = new Uri[] { NotePad.Notes.CONTENT_URI, NotePad.Notes.FOLDERS_URI };
 			break;
 
 		// If the incoming URI matches a single note ID, does the delete based
@@ -719,10 +3409,17 @@ public class NotePadProvider extends ContentProvider implements
 			 * Starts a final WHERE clause by restricting it to the desired note
 			 * ID.
 			 */
+			String deletedId = uri.getPathSegments().get(
+					NotePad.Notes.NOTE_ID_PATH_POSITION);
 			finalWhere = NotePad.Notes._ID + // The ID column name
 					" = " + // test for equality
-					uri.getPathSegments(). // the incoming note ID
-							get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+					deletedId; // the incoming note ID
+
+			// The folder list of the note changes too
+			String deletedFolder = mStatements.queryFolder(db, deletedId);
+
+			// Only deletes the note if it is still at the expected version
+			finalWhere = appendExpectedVersion(uri, finalWhere);
 
 			// If there were additional selection criteria, append them to the
 			// final
@@ -737,6 +3434,11 @@ public class NotePadProvider extends ContentProvider implements
 					finalWhere, // The final WHERE clause
 					whereArgs // The incoming where clause values.
 					);
+			if (count > 0) {
+				deleteStreamFiles(deletedId, null);
+			}
+			changed = new Uri[] { getNoteUri(deletedId), getFolderUri(deletedFolder),
+					NotePad.Notes.FOLDERS_URI };
 			break;
 
 		// If the incoming pattern is invalid, throws an exception.
@@ -745,12 +3447,12 @@ public class NotePadProvider extends ContentProvider implements
 		}
 
 		/*
-		 * Gets a handle to the content resolver object for the current context,
-		 * and notifies it that the incoming URI changed. The object passes this
-		 * along to the resolver framework, and observers that have registered
-		 * themselves for the provider are notified.
+		 * Notifies the observers of the notes and folders that changed. Within
+		 * a batch the notifications are merged and sent later.
 		 */
-		getContext().getContentResolver().notifyChange(uri, null);
+		if (count > 0) {
+			notifyChanges(changed);
+		}
 
 		// Returns the number of rows deleted.
 		return count;
@@ -786,11 +3488,25 @@ public class NotePadProvider extends ContentProvider implements
 	@Override
 	public int update(Uri uri, ContentValues values, String where,
 			String[] whereArgs) {
+		long start = SystemClock.uptimeMillis();
+		int count = doUpdate(uri, values, where, whereArgs);
+		mStats.record(ProviderStats.OP_UPDATE, getUriKind(sUriMatcher.match(uri)),
+				SystemClock.uptimeMillis() - start, count, countBytes(values), uri, where);
+		return count;
+	}
+
+	/**
+	 * Updates notes, see {@link #update(Uri, ContentValues, String, String[])}.
+	 */
+	private int doUpdate(Uri uri, ContentValues values, String where,
+			String[] whereArgs) {
+		values = withTitleKey(values);
 
 		// Opens the database object in "write" mode.
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 		int count;
 		String finalWhere;
+		Uri[] changed;
 
 		// Does the update based on the incoming URI pattern
 		switch (sUriMatcher.match(uri)) {
@@ -799,14 +3515,14 @@ public class NotePadProvider extends ContentProvider implements
 		// update based on
 		// the incoming data.
 		case NOTES:
-
 			// Does the update and returns the number of rows updated.
-			count = db.update(NotePad.Notes.TABLE_NAME, // The database table
-														// name.
+			count = updateNotes(db, // The database
 					values, // A map of column names and new values to use.
 					where, // The where clause column names.
 					whereArgs // The where clause column values to select on.
 					);
+			// any note and any folder may have changed
+			changed = new Uri[] { NotePad.Notes.CONTENT_URI, NotePad.Notes.FOLDERS_URI };
 			break;
 
 		// If the incoming URI matches a single note ID, does the update based
@@ -827,6 +3543,23 @@ public class NotePadProvider extends ContentProvider implements
 					noteId // the incoming note ID
 			;
 
+			// Only updates the note if it is still at the expected version
+			finalWhere = appendExpectedVersion(uri, finalWhere);
+
+			// The folder list of the note changes too, and the folder counts
+			// if the note moves or gets deleted
+			String oldFolder = mStatements.queryFolder(db, noteId);
+			String newFolder = values.getAsString(NotePad.Notes.COLUMN_NAME_FOLDER);
+			if (newFolder != null && !newFolder.equals(oldFolder)) {
+				changed = new Uri[] { getNoteUri(noteId), getFolderUri(oldFolder),
+						getFolderUri(newFolder), NotePad.Notes.FOLDERS_URI };
+			} else if (values.containsKey(NotePad.Notes.COLUMN_NAME_DELETED)) {
+				changed = new Uri[] { getNoteUri(noteId), getFolderUri(oldFolder),
+						NotePad.Notes.FOLDERS_URI };
+			} else {
+				changed = new Uri[] { getNoteUri(noteId), getFolderUri(oldFolder) };
+			}
+
 			// If there were additional selection criteria, append them to the
 			// final WHERE
 			// clause
@@ -834,15 +3567,23 @@ public class NotePadProvider extends ContentProvider implements
 				finalWhere = finalWhere + " AND " + where;
 			}
 
-			// Does the update and returns the number of rows updated.
-			count = db.update(NotePad.Notes.TABLE_NAME, // The database table
-														// name.
-					values, // A map of column names and new values to use.
-					finalWhere, // The final WHERE clause to use
-								// placeholders for whereArgs
-					whereArgs // The where clause column values to select on, or
-								// null if the values are in the where argument.
-					);
+			// Does the update and returns the number of rows updated. The
+			// usual updates, of some columns of the note alone, run a cached
+			// statement.
+			if (where == null && values.size() > 0
+					&& !values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)
+					&& !values.containsKey(NotePad.Notes.COLUMN_NAME_BASE)) {
+				count = mStatements.updateById(db, values, Long.parseLong(noteId),
+						getExpectedVersion(uri));
+			} else {
+				count = updateNotes(db, // The database
+						values, // A map of column names and new values to use.
+						finalWhere, // The final WHERE clause to use
+									// placeholders for whereArgs
+						whereArgs // The where clause column values to select on, or
+									// null if the values are in the where argument.
+						);
+			}
 			break;
 		// If the incoming pattern is invalid, throws an exception.
 		default:
@@ -850,17 +3591,312 @@ public class NotePadProvider extends ContentProvider implements
 		}
 
 		/*
-		 * Gets a handle to the content resolver object for the current context,
-		 * and notifies it that the incoming URI changed. The object passes this
-		 * along to the resolver framework, and observers that have registered
-		 * themselves for the provider are notified.
+		 * Notifies the observers of the notes and folders that changed. Within
+		 * a batch the notifications are merged and sent later.
 		 */
-		getContext().getContentResolver().notifyChange(uri, null);
+		if (count > 0) {
+			notifyChanges(changed);
+		}
 
 		// Returns the number of rows updated.
 		return count;
 	}
 
+	/**
+	 * Updates the notes selected by a WHERE clause, writing their content to
+	 * the contents table and their merge base to the bodies. The body is
+	 * written first, since the update of the notes can change the columns the
+	 * WHERE clause tests, such as the version. A note whose body alone changes
+	 * still gets a new version.
+	 * 
+	 * @return the number of notes updated
+	 */
+	private static int updateNotes(SQLiteDatabase db, ContentValues values,
+			String where, String[] whereArgs) {
+		if (!values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)
+				&& !values.containsKey(NotePad.Notes.COLUMN_NAME_BASE)) {
+			return db.update(NotePad.Notes.TABLE_NAME, values, where, whereArgs);
+		}
+		ContentValues noteValues = new ContentValues(values);
+		ContentValues bodyValues = new ContentValues();
+		boolean hasText = noteValues.containsKey(NotePad.Notes.COLUMN_NAME_NOTE);
+		String text = noteValues.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+		noteValues.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+		if (noteValues.containsKey(NotePad.Notes.COLUMN_NAME_BASE)) {
+			bodyValues.put(NotePad.Notes.COLUMN_NAME_BASE,
+					noteValues.getAsString(NotePad.Notes.COLUMN_NAME_BASE));
+			noteValues.remove(NotePad.Notes.COLUMN_NAME_BASE);
+		}
+		String notesWhere = TextUtils.isEmpty(where) ? "" : " WHERE " + where;
+
+		db.beginTransaction();
+		try {
+			String hash = null;
+			if (hasText) {
+				saveRevisions(db, text, notesWhere, whereArgs);
+				hash = storeContent(db, text);
+				bodyValues.put(BODIES_COLUMN_NAME_HASH, hash);
+				bodyValues.putNull(BODIES_COLUMN_NAME_NOTE);
+			}
+			db.update(BODIES_TABLE_NAME, bodyValues, BODIES_COLUMN_NAME_NOTE_ID
+					+ " IN (SELECT " + NotePad.Notes._ID + " FROM "
+					+ NotePad.Notes.TABLE_NAME + notesWhere + ")", whereArgs);
+			String preview = null;
+			if (hasText) {
+				indexCompressedContent(db, hash, text, notesWhere, whereArgs);
+				preview = makePreview(text);
+			}
+			int count;
+			if (noteValues.size() > 0) {
+				if (hasText) {
+					noteValues.put(NotePad.Notes.COLUMN_NAME_PREVIEW, preview);
+				}
+				count = db.update(NotePad.Notes.TABLE_NAME, noteValues, where, whereArgs);
+			} else {
+				// the preview alone does not change the version
+				SQLiteStatement bump = db.compileStatement("UPDATE "
+						+ NotePad.Notes.TABLE_NAME + " SET "
+						+ NotePad.Notes.COLUMN_NAME_VERSION + " = "
+						+ NotePad.Notes.COLUMN_NAME_VERSION + " + 1"
+						+ (hasText ? ", " + NotePad.Notes.COLUMN_NAME_PREVIEW + " = ?" : "")
+						+ notesWhere);
+				try {
+					int index = 1;
+					if (hasText) {
+						bump.bindString(index++, preview);
+					}
+					if (whereArgs != null) {
+						for (int i = 0; i < whereArgs.length; i++) {
+							bump.bindString(index++, whereArgs[i]);
+						}
+					}
+					count = bump.executeUpdateDelete();
+				} finally {
+					bump.close();
+				}
+			}
+			db.setTransactionSuccessful();
+			return count;
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Keeps the content of the notes selected by a WHERE clause as a revision,
+	 * for the notes whose content is about to be replaced by another text.
+	 */
+	private static void saveRevisions(SQLiteDatabase db, String newText,
+			String notesWhere, String[] whereArgs) {
+		Cursor c = db.rawQuery("SELECT n." + NotePad.Notes._ID + ", n."
+				+ NotePad.Notes.COLUMN_NAME_TITLE + ", n."
+				+ NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+				+ JOINED_CONTENT + " FROM " + NotePad.Notes.TABLE_NAME
+				+ " n" + NOTE_CONTENT_JOIN + notesWhere, whereArgs);
+		try {
+			while (c.moveToNext()) {
+				String oldText = ContentCodec.read(c, 3);
+				// an empty note has nothing worth keeping
+				if (!TextUtils.isEmpty(oldText) && !oldText.equals(newText)) {
+					NoteRevisions.add(db, c.getLong(0), c.getString(1), oldText, c.getLong(2));
+				}
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Restricts a WHERE clause to the version given by the
+	 * {@link NotePad.Notes#PARAM_EXPECTED_VERSION} parameter of the URI, if
+	 * there is one.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the expected version is not a number.
+	 */
+	private static String appendExpectedVersion(Uri uri, String where) {
+		Long expectedVersion = getExpectedVersion(uri);
+		if (expectedVersion == null) {
+			return where;
+		}
+		return where + " AND " + NotePad.Notes.COLUMN_NAME_VERSION + " = "
+				+ expectedVersion;
+	}
+
+	/**
+	 * Returns the {@link NotePad.Notes#PARAM_EXPECTED_VERSION} parameter of
+	 * the URI, or null if there is none.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the expected version is not a number.
+	 */
+	private static Long getExpectedVersion(Uri uri) {
+		String expectedVersion = uri
+				.getQueryParameter(NotePad.Notes.PARAM_EXPECTED_VERSION);
+		if (expectedVersion == null) {
+			return null;
+		}
+		try {
+			return Long.valueOf(expectedVersion);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad version in " + uri);
+		}
+	}
+
+	/**
+	 * Keeps the compiled statements of the writes the editor and the sync
+	 * repeat for every note: inserts, updates of some columns of one note and
+	 * the lookup of the folder of a note. A statement is compiled once per set
+	 * of columns, instead of once per call as db.insert() and db.update() do,
+	 * and its values are bound as parameters. The least recently used
+	 * statements are closed once there are more than {@link #MAX_STATEMENTS}.
+	 * 
+	 * A compiled statement can only run one call at a time, so the cache is
+	 * used under its own lock.
+	 */
+	private static final class StatementCache {
+		private static final int MAX_STATEMENTS = 16;
+
+		private SQLiteDatabase mDb;
+		private final LinkedHashMap<String, SQLiteStatement> mStatements = new LinkedHashMap<String, SQLiteStatement>(
+				MAX_STATEMENTS, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, SQLiteStatement> eldest) {
+				if (size() > MAX_STATEMENTS) {
+					eldest.getValue().close();
+					return true;
+				}
+				return false;
+			}
+		};
+
+		/**
+		 * Inserts a row.
+		 * 
+		 * @return the row ID of the new row, or -1 if the insert failed
+		 */
+		synchronized long insert(SQLiteDatabase db, String table,
+				ContentValues values) {
+			ArrayList<String> columns = sortedColumns(values);
+			StringBuilder sql = new StringBuilder("INSERT INTO ").append(table)
+					.append(" (");
+			for (int i = 0; i < columns.size(); i++) {
+				sql.append(i > 0 ? ", " : "").append(columns.get(i));
+			}
+			sql.append(") VALUES (");
+			for (int i = 0; i < columns.size(); i++) {
+				sql.append(i > 0 ? ", ?" : "?");
+			}
+			sql.append(')');
+			SQLiteStatement statement = getStatement(db, sql.toString());
+			bindValues(statement, values, columns);
+			try {
+				return statement.executeInsert();
+			} catch (SQLException e) {
+				Log.e(TAG, "Failed to insert into " + table, e);
+				return -1;
+			}
+		}
+
+		/**
+		 * Updates some columns of one note.
+		 * 
+		 * @param expectedVersion
+		 *            the version the note must be at, or null for any
+		 * @return the number of notes updated, 0 or 1
+		 */
+		synchronized int updateById(SQLiteDatabase db, ContentValues values,
+				long noteId, Long expectedVersion) {
+			ArrayList<String> columns = sortedColumns(values);
+			StringBuilder sql = new StringBuilder("UPDATE ").append(
+					NotePad.Notes.TABLE_NAME).append(" SET ");
+			for (int i = 0; i < columns.size(); i++) {
+				sql.append(i > 0 ? ", " : "").append(columns.get(i)).append(" = ?");
+			}
+			sql.append(" WHERE ").append(NotePad.Notes._ID).append(" = ?");
+			if (expectedVersion != null) {
+				sql.append(" AND ").append(NotePad.Notes.COLUMN_NAME_VERSION)
+						.append(" = ?");
+			}
+			SQLiteStatement statement = getStatement(db, sql.toString());
+			bindValues(statement, values, columns);
+			statement.bindLong(columns.size() + 1, noteId);
+			if (expectedVersion != null) {
+				statement.bindLong(columns.size() + 2, expectedVersion);
+			}
+			return statement.executeUpdateDelete();
+		}
+
+		/**
+		 * Returns the folder of a note, or null if there is no such note.
+		 */
+		synchronized String queryFolder(SQLiteDatabase db, String noteId) {
+			SQLiteStatement statement = getStatement(db, "SELECT "
+					+ NotePad.Notes.COLUMN_NAME_FOLDER + " FROM "
+					+ NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID
+					+ " = ?");
+			statement.bindString(1, noteId);
+			try {
+				return statement.simpleQueryForString();
+			} catch (SQLiteDoneException e) {
+				return null;
+			}
+		}
+
+		private SQLiteStatement getStatement(SQLiteDatabase db, String sql) {
+			if (db != mDb) {
+				// the statements belong to the database they were compiled for
+				for (SQLiteStatement statement : mStatements.values()) {
+					statement.close();
+				}
+				mStatements.clear();
+				mDb = db;
+			}
+			SQLiteStatement statement = mStatements.get(sql);
+			if (statement == null) {
+				statement = db.compileStatement(sql);
+				mStatements.put(sql, statement);
+			} else {
+				statement.clearBindings();
+			}
+			return statement;
+		}
+
+		/**
+		 * Returns the columns of the values in a stable order, so the same set
+		 * of columns always maps to the same statement.
+		 */
+		private static ArrayList<String> sortedColumns(ContentValues values) {
+			ArrayList<String> columns = new ArrayList<String>(values.keySet());
+			Collections.sort(columns);
+			return columns;
+		}
+
+		private static void bindValues(SQLiteStatement statement,
+				ContentValues values, ArrayList<String> columns) {
+			for (int i = 0; i < columns.size(); i++) {
+				Object value = values.get(columns.get(i));
+				int index = i + 1;
+				if (value == null) {
+					statement.bindNull(index);
+				} else if (value instanceof Double || value instanceof Float) {
+					statement.bindDouble(index, ((Number) value).doubleValue());
+				} else if (value instanceof Number) {
+					statement.bindLong(index, ((Number) value).longValue());
+				} else if (value instanceof Boolean) {
+					statement.bindLong(index, (Boolean) value ? 1 : 0);
+				} else if (value instanceof byte[]) {
+					statement.bindBlob(index, (byte[]) value);
+				} else {
+					statement.bindString(index, value.toString());
+				}
+			}
+		}
+	}
+
 	/**
 	 * A test package can call this to get a handle to the database underlying
 	 * NotePadProvider, so it can insert test data into the database. The test
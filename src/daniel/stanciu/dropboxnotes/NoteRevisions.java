@@ -0,0 +1,292 @@
+package daniel.stanciu.dropboxnotes;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Stores the revision history of the notes, see {@link NotePad.Revisions}.
+ *
+ * The revisions of a note form chains: a snapshot holding the full text,
+ * followed by revisions holding the {@link LineDelta} from the revision before
+ * them. A chain is at most {@link #SNAPSHOT_INTERVAL} revisions long, so any
+ * revision is rebuilt from its snapshot with a few deltas. The oldest revision
+ * of a note is always a snapshot: when the oldest one is dropped, the one
+ * after it is stored in full.
+ */
+class NoteRevisions {
+	/**
+	 * Revisions kept per note
+	 */
+	static final int MAX_REVISIONS = 50;
+
+	/**
+	 * Characters of snapshots and deltas kept per note. The latest revision is
+	 * kept even if it is larger.
+	 */
+	static final int MAX_CHARS = 256 * 1024;
+
+	/**
+	 * Revisions in a chain, the snapshot included
+	 */
+	static final int SNAPSHOT_INTERVAL = 10;
+
+	/**
+	 * Column holding 1 for snapshots and 0 for deltas
+	 */
+	private static final String COLUMN_NAME_SNAPSHOT = "snapshot";
+
+	/**
+	 * Column holding the text of a snapshot or the delta from the revision
+	 * before
+	 */
+	private static final String COLUMN_NAME_DATA = "data";
+
+	private static final String[] CHAIN_COLUMNS = { NotePad.Revisions._ID,
+			COLUMN_NAME_SNAPSHOT, COLUMN_NAME_DATA };
+
+	private static final String[] LIST_COLUMNS = { NotePad.Revisions._ID,
+			NotePad.Revisions.COLUMN_NAME_NOTE_ID, NotePad.Revisions.COLUMN_NAME_TITLE,
+			NotePad.Revisions.COLUMN_NAME_MODIFICATION_DATE, COLUMN_NAME_SNAPSHOT,
+			COLUMN_NAME_DATA };
+
+	/**
+	 * All the columns of a revision, the default projection
+	 */
+	private static final String[] ALL_COLUMNS = { NotePad.Revisions._ID,
+			NotePad.Revisions.COLUMN_NAME_NOTE_ID, NotePad.Revisions.COLUMN_NAME_TITLE,
+			NotePad.Revisions.COLUMN_NAME_NOTE, NotePad.Revisions.COLUMN_NAME_MODIFICATION_DATE };
+
+	// This class cannot be instantiated
+	private NoteRevisions() {
+	}
+
+	/**
+	 * Creates the revisions table and the trigger that deletes the revisions
+	 * of a note along with it
+	 */
+	static void createTable(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + NotePad.Revisions.TABLE_NAME + " ("
+				+ NotePad.Revisions._ID + " INTEGER PRIMARY KEY,"
+				+ NotePad.Revisions.COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+				+ NotePad.Revisions.COLUMN_NAME_TITLE + " TEXT,"
+				+ NotePad.Revisions.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
+				+ COLUMN_NAME_SNAPSHOT + " INTEGER NOT NULL,"
+				+ COLUMN_NAME_DATA + " TEXT NOT NULL);");
+		db.execSQL("CREATE INDEX revisions_note ON " + NotePad.Revisions.TABLE_NAME
+				+ " (" + NotePad.Revisions.COLUMN_NAME_NOTE_ID + ", "
+				+ NotePad.Revisions._ID + ");");
+		db.execSQL("CREATE TRIGGER notes_revisions_delete AFTER DELETE ON "
+				+ NotePad.Notes.TABLE_NAME + " BEGIN DELETE FROM "
+				+ NotePad.Revisions.TABLE_NAME + " WHERE "
+				+ NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = OLD."
+				+ NotePad.Notes._ID + "; END;");
+	}
+
+	/**
+	 * Adds a revision holding a text a note had, then drops the oldest
+	 * revisions of the note beyond the limits. Must run in a transaction.
+	 */
+	static void add(SQLiteDatabase db, long noteId, String title, String text, long modified) {
+		String[] noteArgs = { Long.toString(noteId) };
+		// the latest revision and the length of its chain
+		long latestId = -1;
+		int chainLength = 0;
+		Cursor c = db.query(NotePad.Revisions.TABLE_NAME, new String[] {
+				NotePad.Revisions._ID, COLUMN_NAME_SNAPSHOT },
+				NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ?", noteArgs, null, null,
+				NotePad.Revisions._ID + " DESC", Integer.toString(SNAPSHOT_INTERVAL));
+		try {
+			while (c.moveToNext()) {
+				if (latestId == -1) {
+					latestId = c.getLong(0);
+				}
+				chainLength++;
+				if (c.getInt(1) != 0) {
+					break;
+				}
+			}
+		} finally {
+			c.close();
+		}
+
+		boolean snapshot = true;
+		String data = text;
+		if (latestId != -1 && chainLength < SNAPSHOT_INTERVAL) {
+			String delta = LineDelta.encode(getText(db, noteId, latestId), text);
+			// a delta is not worth it if it is nearly as long as the text
+			if (delta.length() < text.length() / 2) {
+				snapshot = false;
+				data = delta;
+			}
+		}
+		ContentValues values = new ContentValues();
+		values.put(NotePad.Revisions.COLUMN_NAME_NOTE_ID, noteId);
+		values.put(NotePad.Revisions.COLUMN_NAME_TITLE, title);
+		values.put(NotePad.Revisions.COLUMN_NAME_MODIFICATION_DATE, modified);
+		values.put(COLUMN_NAME_SNAPSHOT, snapshot ? 1 : 0);
+		values.put(COLUMN_NAME_DATA, data);
+		db.insert(NotePad.Revisions.TABLE_NAME, null, values);
+
+		prune(db, noteId);
+	}
+
+	/**
+	 * Drops the oldest revisions of a note until it is within the limits,
+	 * storing the new oldest revision in full if it is a delta
+	 */
+	private static void prune(SQLiteDatabase db, long noteId) {
+		String[] noteArgs = { Long.toString(noteId) };
+		while (true) {
+			long count;
+			long chars;
+			Cursor c = db.rawQuery("SELECT COUNT(*), TOTAL(LENGTH(" + COLUMN_NAME_DATA
+					+ ")) FROM " + NotePad.Revisions.TABLE_NAME + " WHERE "
+					+ NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ?", noteArgs);
+			try {
+				c.moveToFirst();
+				count = c.getLong(0);
+				chars = c.getLong(1);
+			} finally {
+				c.close();
+			}
+			if (count <= 1 || (count <= MAX_REVISIONS && chars <= MAX_CHARS)) {
+				return;
+			}
+
+			c = db.query(NotePad.Revisions.TABLE_NAME, CHAIN_COLUMNS,
+					NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ?", noteArgs, null, null,
+					NotePad.Revisions._ID + " ASC", "2");
+			try {
+				c.moveToFirst();
+				long oldestId = c.getLong(0);
+				String oldestText = c.getString(2);
+				c.moveToNext();
+				if (c.getInt(1) == 0) {
+					ContentValues values = new ContentValues();
+					values.put(COLUMN_NAME_SNAPSHOT, 1);
+					values.put(COLUMN_NAME_DATA, LineDelta.apply(oldestText, c.getString(2)));
+					db.update(NotePad.Revisions.TABLE_NAME, values, NotePad.Revisions._ID
+							+ " = " + c.getLong(0), null);
+				}
+				db.delete(NotePad.Revisions.TABLE_NAME, NotePad.Revisions._ID + " = "
+						+ oldestId, null);
+			} finally {
+				c.close();
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the text of a revision from the snapshot of its chain
+	 *
+	 * @return the text, or null if the note has no such revision
+	 */
+	static String getText(SQLiteDatabase db, long noteId, long revisionId) {
+		String[] args = { Long.toString(noteId), Long.toString(revisionId) };
+		long snapshotId = DatabaseUtils.longForQuery(db, "SELECT MAX("
+				+ NotePad.Revisions._ID + ") FROM " + NotePad.Revisions.TABLE_NAME
+				+ " WHERE " + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ? AND "
+				+ NotePad.Revisions._ID + " <= ? AND " + COLUMN_NAME_SNAPSHOT + " != 0",
+				args);
+		Cursor c = db.query(NotePad.Revisions.TABLE_NAME, CHAIN_COLUMNS,
+				NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ? AND " + NotePad.Revisions._ID
+						+ " BETWEEN " + snapshotId + " AND ?", args, null, null,
+				NotePad.Revisions._ID + " ASC");
+		try {
+			String text = null;
+			long id = -1;
+			while (c.moveToNext()) {
+				id = c.getLong(0);
+				text = c.getInt(1) != 0 ? c.getString(2) : LineDelta.apply(text, c.getString(2));
+			}
+			return id == revisionId ? text : null;
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Returns the revisions of a note, newest first, or a single one. The
+	 * texts are only rebuilt if the projection asks for them, in one pass over
+	 * the chains.
+	 *
+	 * @param revisionId
+	 *            the revision to return, or -1 for all of them
+	 * @param projection
+	 *            columns of {@link NotePad.Revisions}, null for all
+	 */
+	static Cursor query(SQLiteDatabase db, long noteId, long revisionId, String[] projection) {
+		if (projection == null) {
+			projection = ALL_COLUMNS;
+		}
+		boolean readsText = false;
+		for (String column : projection) {
+			if (NotePad.Revisions.COLUMN_NAME_NOTE.equals(column)) {
+				readsText = true;
+			} else if (!isListColumn(column)) {
+				throw new IllegalArgumentException("Invalid column " + column);
+			}
+		}
+
+		String selection = NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId;
+		if (revisionId >= 0) {
+			if (readsText) {
+				// the chain of the revision, from its snapshot
+				selection += " AND " + NotePad.Revisions._ID + " <= " + revisionId
+						+ " AND " + NotePad.Revisions._ID + " >= (SELECT MAX("
+						+ NotePad.Revisions._ID + ") FROM " + NotePad.Revisions.TABLE_NAME
+						+ " WHERE " + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId
+						+ " AND " + NotePad.Revisions._ID + " <= " + revisionId + " AND "
+						+ COLUMN_NAME_SNAPSHOT + " != 0)";
+			} else {
+				selection += " AND " + NotePad.Revisions._ID + " = " + revisionId;
+			}
+		}
+		Cursor c = db.query(NotePad.Revisions.TABLE_NAME, LIST_COLUMNS, selection,
+				null, null, null, NotePad.Revisions._ID + " ASC");
+		Object[][] rows = new Object[c.getCount()][];
+		try {
+			String text = null;
+			int count = 0;
+			while (c.moveToNext()) {
+				if (readsText) {
+					String data = c.getString(5);
+					text = c.getInt(4) != 0 ? data : LineDelta.apply(text, data);
+				}
+				if (revisionId >= 0 && c.getLong(0) != revisionId) {
+					continue;
+				}
+				Object[] row = new Object[projection.length];
+				for (int i = 0; i < projection.length; i++) {
+					String column = projection[i];
+					if (NotePad.Revisions.COLUMN_NAME_NOTE.equals(column)) {
+						row[i] = text;
+					} else if (NotePad.Revisions.COLUMN_NAME_TITLE.equals(column)) {
+						row[i] = c.getString(2);
+					} else {
+						row[i] = c.getLong(c.getColumnIndexOrThrow(column));
+					}
+				}
+				rows[count++] = row;
+			}
+			MatrixCursor result = new MatrixCursor(projection, count);
+			// newest first
+			for (int i = count - 1; i >= 0; i--) {
+				result.addRow(rows[i]);
+			}
+			return result;
+		} finally {
+			c.close();
+		}
+	}
+
+	private static boolean isListColumn(String column) {
+		return NotePad.Revisions._ID.equals(column)
+				|| NotePad.Revisions.COLUMN_NAME_NOTE_ID.equals(column)
+				|| NotePad.Revisions.COLUMN_NAME_TITLE.equals(column)
+				|| NotePad.Revisions.COLUMN_NAME_MODIFICATION_DATE.equals(column);
+	}
+}
@@ -0,0 +1,282 @@
+package daniel.stanciu.dropboxnotes;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Latency and volume of the operations of {@link NotePadProvider}, per
+ * operation and kind of URI, plus a log of the slowest recent operations.
+ * Read through {@link NotePad.Diagnostics}.
+ *
+ * Latencies go into histograms with power of two buckets, from 1 ms up to
+ * about 1 s, so recording one costs a few comparisons and the percentiles are
+ * accurate to a factor of two.
+ */
+class ProviderStats {
+	private static final String TAG = "ProviderStats";
+
+	static final String OP_QUERY = "query";
+	static final String OP_INSERT = "insert";
+	static final String OP_UPDATE = "update";
+	static final String OP_DELETE = "delete";
+
+	/**
+	 * Upper bounds of the histogram buckets, in milliseconds. The last bucket
+	 * takes everything above the last bound.
+	 */
+	private static final long[] BUCKET_BOUNDS_MILLIS = { 1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024 };
+
+	/**
+	 * Default duration above which an operation is logged as slow
+	 */
+	static final long DEFAULT_SLOW_THRESHOLD_MILLIS = 100;
+
+	/**
+	 * Slow operations kept, the oldest are dropped first
+	 */
+	private static final int SLOW_LOG_SIZE = 32;
+
+	private static final String[] STATS_COLUMNS = {
+		NotePad.Diagnostics._ID,
+		NotePad.Diagnostics.COLUMN_NAME_OPERATION,
+		NotePad.Diagnostics.COLUMN_NAME_URI,
+		NotePad.Diagnostics.COLUMN_NAME_COUNT,
+		NotePad.Diagnostics.COLUMN_NAME_TOTAL_MILLIS,
+		NotePad.Diagnostics.COLUMN_NAME_MAX_MILLIS,
+		NotePad.Diagnostics.COLUMN_NAME_P50_MILLIS,
+		NotePad.Diagnostics.COLUMN_NAME_P90_MILLIS,
+		NotePad.Diagnostics.COLUMN_NAME_P99_MILLIS,
+		NotePad.Diagnostics.COLUMN_NAME_ROWS,
+		NotePad.Diagnostics.COLUMN_NAME_BYTES,
+		NotePad.Diagnostics.COLUMN_NAME_HISTOGRAM
+	};
+
+	private static final String[] SLOW_COLUMNS = {
+		NotePad.Diagnostics._ID,
+		NotePad.Diagnostics.COLUMN_NAME_TIME,
+		NotePad.Diagnostics.COLUMN_NAME_OPERATION,
+		NotePad.Diagnostics.COLUMN_NAME_URI,
+		NotePad.Diagnostics.COLUMN_NAME_MILLIS,
+		NotePad.Diagnostics.COLUMN_NAME_ROWS,
+		NotePad.Diagnostics.COLUMN_NAME_DETAIL
+	};
+
+	// statistics by operation and kind of URI, in the order they first occurred
+	private final LinkedHashMap<String, OpStats> mEntries = new LinkedHashMap<String, OpStats>();
+	private final ArrayList<Object[]> mSlowLog = new ArrayList<Object[]>();
+	private long mSlowCount = 0;
+	private volatile long mSlowThresholdMillis = DEFAULT_SLOW_THRESHOLD_MILLIS;
+
+	/**
+	 * Records one operation.
+	 *
+	 * @param uriKind
+	 *            the kind of URI, such as notes or note_id
+	 * @param rows
+	 *            the rows returned or changed
+	 * @param bytes
+	 *            the bytes written, for queries see {@link #countBytes}
+	 * @param uri
+	 *            the URI of the operation, for the slow log
+	 * @param selection
+	 *            the selection of the operation, for the slow log
+	 */
+	void record(String op, String uriKind, long millis, long rows, long bytes, Uri uri, String selection) {
+		String detail;
+		synchronized (this) {
+			entry(op, uriKind).add(millis, rows, bytes);
+			if (millis < mSlowThresholdMillis) {
+				return;
+			}
+			detail = selection == null ? uri.toString() : uri + " WHERE " + selection;
+			if (mSlowLog.size() == SLOW_LOG_SIZE) {
+				mSlowLog.remove(0);
+			}
+			mSlowLog.add(new Object[] { ++mSlowCount, System.currentTimeMillis(), op, uriKind,
+					millis, rows, detail });
+		}
+		Log.w(TAG, "Slow " + op + " of " + uriKind + ": " + millis + " ms, " + rows + " rows, " + detail);
+	}
+
+	/**
+	 * Wraps the cursor of a query so the bytes the caller reads from it are
+	 * added to the statistics of the query when it is closed. Counting what
+	 * is read costs nothing up front, unlike measuring the whole result.
+	 */
+	Cursor countBytes(Cursor cursor, String uriKind) {
+		return new ByteCountingCursor(cursor, entry(OP_QUERY, uriKind));
+	}
+
+	void setSlowThresholdMillis(long millis) {
+		mSlowThresholdMillis = millis;
+	}
+
+	synchronized void reset() {
+		mEntries.clear();
+		mSlowLog.clear();
+	}
+
+	/**
+	 * Returns a row per operation and kind of URI, with the columns of
+	 * {@link NotePad.Diagnostics#CONTENT_URI}
+	 */
+	synchronized Cursor statsCursor() {
+		MatrixCursor cursor = new MatrixCursor(STATS_COLUMNS, mEntries.size());
+		int id = 0;
+		for (Map.Entry<String, OpStats> e : mEntries.entrySet()) {
+			OpStats entry = e.getValue();
+			cursor.addRow(new Object[] { ++id, entry.mOp, entry.mUriKind, entry.mCount,
+					entry.mTotalMillis, entry.mMaxMillis, entry.percentile(50),
+					entry.percentile(90), entry.percentile(99), entry.mRows, entry.mBytes,
+					entry.histogram() });
+		}
+		return cursor;
+	}
+
+	/**
+	 * Returns the slow operations, oldest first, with the columns of
+	 * {@link NotePad.Diagnostics#SLOW_URI}
+	 */
+	synchronized Cursor slowLogCursor() {
+		MatrixCursor cursor = new MatrixCursor(SLOW_COLUMNS, mSlowLog.size());
+		for (Object[] row : mSlowLog) {
+			cursor.addRow(row);
+		}
+		return cursor;
+	}
+
+	private synchronized OpStats entry(String op, String uriKind) {
+		String key = op + ' ' + uriKind;
+		OpStats entry = mEntries.get(key);
+		if (entry == null) {
+			entry = new OpStats(op, uriKind);
+			mEntries.put(key, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Statistics of one operation on one kind of URI, guarded by the
+	 * enclosing {@link ProviderStats}
+	 */
+	private class OpStats {
+		final String mOp;
+		final String mUriKind;
+		final int[] mBuckets = new int[BUCKET_BOUNDS_MILLIS.length + 1];
+		long mCount;
+		long mTotalMillis;
+		long mMaxMillis;
+		long mRows;
+		long mBytes;
+
+		OpStats(String op, String uriKind) {
+			mOp = op;
+			mUriKind = uriKind;
+		}
+
+		void add(long millis, long rows, long bytes) {
+			int bucket = 0;
+			while (bucket < BUCKET_BOUNDS_MILLIS.length && millis > BUCKET_BOUNDS_MILLIS[bucket]) {
+				bucket++;
+			}
+			mBuckets[bucket]++;
+			mCount++;
+			mTotalMillis += millis;
+			mMaxMillis = Math.max(mMaxMillis, millis);
+			mRows += rows;
+			mBytes += bytes;
+		}
+
+		void addBytes(long bytes) {
+			synchronized (ProviderStats.this) {
+				mBytes += bytes;
+			}
+		}
+
+		/**
+		 * Returns the upper bound of the bucket holding the given percentile,
+		 * or the maximum for the last bucket
+		 */
+		long percentile(int percent) {
+			long rank = (mCount * percent + 99) / 100;
+			long seen = 0;
+			for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+				seen += mBuckets[i];
+				if (seen >= rank) {
+					return Math.min(BUCKET_BOUNDS_MILLIS[i], mMaxMillis);
+				}
+			}
+			return mMaxMillis;
+		}
+
+		/**
+		 * Formats the buckets that are not empty, such as "<=1:40 <=2:3 >1024:1"
+		 */
+		String histogram() {
+			StringBuilder text = new StringBuilder();
+			for (int i = 0; i < mBuckets.length; i++) {
+				if (mBuckets[i] == 0) {
+					continue;
+				}
+				if (text.length() > 0) {
+					text.append(' ');
+				}
+				if (i < BUCKET_BOUNDS_MILLIS.length) {
+					text.append("<=").append(BUCKET_BOUNDS_MILLIS[i]);
+				} else {
+					text.append('>').append(BUCKET_BOUNDS_MILLIS[i - 1]);
+				}
+				text.append(':').append(mBuckets[i]);
+			}
+			return text.toString();
+		}
+	}
+
+	/**
+	 * Counts the bytes of the strings and blobs read from a cursor, two per
+	 * character for strings
+	 */
+	private static class ByteCountingCursor extends CursorWrapper {
+		private final OpStats mEntry;
+		private long mBytes = 0;
+
+		ByteCountingCursor(Cursor cursor, OpStats entry) {
+			super(cursor);
+			mEntry = entry;
+		}
+
+		@Override
+		public String getString(int columnIndex) {
+			String value = super.getString(columnIndex);
+			if (value != null) {
+				mBytes += 2 * value.length();
+			}
+			return value;
+		}
+
+		@Override
+		public byte[] getBlob(int columnIndex) {
+			byte[] value = super.getBlob(columnIndex);
+			if (value != null) {
+				mBytes += value.length;
+			}
+			return value;
+		}
+
+		@Override
+		public void close() {
+			if (!isClosed()) {
+				mEntry.addBytes(mBytes);
+				mBytes = 0;
+			}
+			super.close();
+		}
+	}
+}
@@ -0,0 +1,318 @@
+package daniel.stanciu.dropboxnotes;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Disk cache for note content downloaded from Dropbox. Entries are keyed by the
+ * Dropbox path and revision of the file, so a revision that was already
+ * downloaded (or uploaded) never has to be fetched again.
+ *
+ * The cache is bounded by a byte budget and evicts the least recently used
+ * entries first. New entries are written to a temporary file and renamed into
+ * place, so a crash or a canceled download never leaves a partial entry behind.
+ */
+public class RemoteContentCache {
+	private static final String TAG = "RemoteContentCache";
+
+	/**
+	 * Default byte budget of the cache
+	 */
+	public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+	private static final String CACHE_DIR_NAME = "remote";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final char REV_SEPARATOR = '.';
+
+	private static RemoteContentCache sInstance;
+
+	private final File mDirectory;
+	private long mMaxBytes;
+	private long mSize = 0;
+
+	// access ordered, so iteration starts with the least recently used entry
+	private final LinkedHashMap<String, File> mEntries = new LinkedHashMap<String, File>(16, 0.75f, true);
+
+	private int mHitCount = 0;
+	private int mMissCount = 0;
+	private int mPutCount = 0;
+	private int mEvictionCount = 0;
+
+	/**
+	 * Returns the cache shared by the application, creating it under the
+	 * application cache directory on first use.
+	 */
+	public static synchronized RemoteContentCache getInstance(Context context) {
+		if (sInstance == null) {
+			File dir = new File(context.getApplicationContext().getCacheDir(), CACHE_DIR_NAME);
+			sInstance = new RemoteContentCache(dir, DEFAULT_MAX_BYTES);
+		}
+		return sInstance;
+	}
+
+	RemoteContentCache(File directory, long maxBytes) {
+		mDirectory = directory;
+		mMaxBytes = maxBytes;
+		loadEntries();
+	}
+
+	/**
+	 * Rebuilds the in-memory index from the cache directory. The last modified
+	 * time of each file is used as its last access time.
+	 */
+	private void loadEntries() {
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+			Log.w(TAG, "Cannot create cache directory " + mDirectory);
+			return;
+		}
+		File[] files = mDirectory.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				long l = lhs.lastModified();
+				long r = rhs.lastModified();
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+		});
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(TEMP_SUFFIX)) {
+				// left over by an interrupted write
+				file.delete();
+				continue;
+			}
+			mEntries.put(name, file);
+			mSize += file.length();
+		}
+		trimToSize(mMaxBytes);
+	}
+
+	/**
+	 * Opens the cached content of a file revision.
+	 *
+	 * @return a stream over the cached content, or null if the revision is not
+	 *         cached
+	 */
+	public synchronized InputStream get(String path, String rev) {
+		if (rev == null) {
+			mMissCount++;
+			return null;
+		}
+		String key = getKey(path, rev);
+		File file = mEntries.get(key);
+		if (file != null) {
+			try {
+				InputStream is = new FileInputStream(file);
+				file.setLastModified(System.currentTimeMillis());
+				mHitCount++;
+				return is;
+			} catch (FileNotFoundException e) {
+				// removed behind our back
+				mEntries.remove(key);
+				mSize -= file.length();
+			}
+		}
+		mMissCount++;
+		return null;
+	}
+
+	/**
+	 * Stores the content of a file revision, reading the given stream to its end.
+	 * The stream is not closed. Older revisions of the same path are dropped.
+	 *
+	 * @return a stream over the stored content
+	 * @throws IOException
+	 *             if the stream cannot be read or the entry cannot be written.
+	 *             Nothing is added to the cache in that case.
+	 */
+	public InputStream put(String path, String rev, InputStream in) throws IOException {
+		if (rev == null) {
+			throw new IOException("No revision for " + path);
+		}
+		String key = getKey(path, rev);
+		File temp = new File(mDirectory, key + TEMP_SUFFIX);
+		OutputStream out = new FileOutputStream(temp);
+		boolean written = false;
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			out.close();
+			out = null;
+			written = true;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+			if (!written) {
+				temp.delete();
+			}
+		}
+		return new FileInputStream(commit(key, temp));
+	}
+
+	/**
+	 * Stores content that is already in memory, such as a note that was just
+	 * uploaded.
+	 */
+	public void put(String path, String rev, byte[] content) {
+		if (rev == null) {
+			return;
+		}
+		String key = getKey(path, rev);
+		File temp = new File(mDirectory, key + TEMP_SUFFIX);
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(content);
+			} finally {
+				out.close();
+			}
+			commit(key, temp);
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot cache " + path, e);
+			temp.delete();
+		}
+	}
+
+	private synchronized File commit(String key, File temp) throws IOException {
+		File file = new File(mDirectory, key);
+		File old = mEntries.remove(key);
+		if (old != null) {
+			mSize -= old.length();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Cannot commit cache entry " + file);
+		}
+		removeOtherRevisions(key);
+		mEntries.put(key, file);
+		mSize += file.length();
+		mPutCount++;
+		// keep the new entry even if it is larger than the whole budget
+		trimToSize(Math.max(mMaxBytes, file.length()));
+		return file;
+	}
+
+	private void removeOtherRevisions(String key) {
+		String prefix = key.substring(0, key.indexOf(REV_SEPARATOR) + 1);
+		Iterator<Map.Entry<String, File>> it = mEntries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, File> entry = it.next();
+			if (entry.getKey().startsWith(prefix) && !entry.getKey().equals(key)) {
+				mSize -= entry.getValue().length();
+				entry.getValue().delete();
+				it.remove();
+			}
+		}
+	}
+
+	private void trimToSize(long maxBytes) {
+		Iterator<Map.Entry<String, File>> it = mEntries.entrySet().iterator();
+		while (mSize > maxBytes && it.hasNext()) {
+			File file = it.next().getValue();
+			mSize -= file.length();
+			file.delete();
+			it.remove();
+			mEvictionCount++;
+		}
+	}
+
+	/**
+	 * Changes the byte budget, evicting entries if the cache is now too large.
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		mMaxBytes = maxBytes;
+		trimToSize(maxBytes);
+	}
+
+	/**
+	 * Removes all entries from the cache.
+	 */
+	public synchronized void clear() {
+		trimToSize(-1);
+	}
+
+	public synchronized long size() {
+		return mSize;
+	}
+
+	public synchronized long maxBytes() {
+		return mMaxBytes;
+	}
+
+	public synchronized int hitCount() {
+		return mHitCount;
+	}
+
+	public synchronized int missCount() {
+		return mMissCount;
+	}
+
+	public synchronized int putCount() {
+		return mPutCount;
+	}
+
+	public synchronized int evictionCount() {
+		return mEvictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		int accesses = mHitCount + mMissCount;
+		int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+		return "RemoteContentCache[size=" + mSize + ",maxBytes=" + mMaxBytes
+				+ ",entries=" + mEntries.size() + ",hits=" + mHitCount
+				+ ",misses=" + mMissCount + ",hitRate=" + hitPercent
+				+ "%,puts=" + mPutCount + ",evictions=" + mEvictionCount + "]";
+	}
+
+	/**
+	 * Builds the file name of an entry. Dropbox paths are case insensitive, so
+	 * the path is lower cased before hashing.
+	 */
+	private static String getKey(String path, String rev) {
+		return hash(path.toLowerCase()) + REV_SEPARATOR + rev;
+	}
+
+	private static String hash(String value) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] bytes = digest.digest(value.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(bytes.length * 2);
+			for (byte b : bytes) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
@@ -2,47 +2,56 @@ package daniel.stanciu.dropboxnotes;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 
 import com.dropbox.client2.DropboxAPI;
 import com.dropbox.client2.DropboxAPI.DropboxInputStream;
 import com.dropbox.client2.DropboxAPI.Entry;
+import com.dropbox.client2.DropboxAPI.UploadRequest;
 import com.dropbox.client2.RESTUtility;
 import com.dropbox.client2.exception.DropboxException;
 import com.dropbox.client2.exception.DropboxIOException;
 import com.dropbox.client2.exception.DropboxParseException;
+import com.dropbox.client2.exception.DropboxPartialFileException;
 import com.dropbox.client2.exception.DropboxServerException;
 import com.dropbox.client2.exception.DropboxUnlinkedException;
 
-import android.app.AlertDialog;
-import android.app.ProgressDialog;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.DialogInterface;
-import android.content.DialogInterface.OnClickListener;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Bundle;
 import android.util.Log;
 import android.widget.Toast;
 
 public class SyncWithDropbox extends AsyncTask<Void, Integer, Boolean> {
 	private static final String TAG = "SyncWithDropbox";
 //    private Context mContext;
-    private final ProgressDialog mDialog;
     private DropboxAPI<?> mApi;
     private DropboxNotesActivity mActivity;
+    private RemoteContentCache mCache;
 
-    private boolean mCanceled = false;
+    private volatile boolean mCanceled = false;
+    // the transfer in flight, aborted when the sync is canceled
+    private volatile UploadRequest mCurrentUpload = null;
+    private volatile DropboxInputStream mCurrentDownload = null;
     private String mErrorMsg;
     private ArrayList<String> localNotes = new ArrayList<String>();
 	private ArrayList<ContentValues> deletedInCloud = new ArrayList<ContentValues>();
 
 
+    private static final String[] NOTE_IDS_PROJECTION = new String[] {
+    	NotePad.Notes._ID
+    };
+
     private static final String[] NOTE_DETAILS_PROJECTION = new String[] {
     	NotePad.Notes._ID,
     	NotePad.Notes.COLUMN_NAME_TITLE,
@@ -50,37 +59,73 @@ public class SyncWithDropbox extends AsyncTask<Void, Integer, Boolean> {
     	NotePad.Notes.COLUMN_NAME_NOTE,
     	NotePad.Notes.COLUMN_NAME_DELETED,
     	NotePad.Notes.COLUMN_NAME_FILE_NAME,
-    	NotePad.Notes.COLUMN_NAME_FOLDER
+    	NotePad.Notes.COLUMN_NAME_FOLDER,
+    	NotePad.Notes.COLUMN_NAME_REV,
+    	NotePad.Notes.COLUMN_NAME_BASE,
+    	NotePad.Notes.COLUMN_NAME_VERSION
     };
 
+    /**
+     * How many times a note that keeps being edited during the sync is planned
+     * before it is left for the next sync
+     */
+    private static final int MAX_SYNC_ATTEMPTS = 3;
+
     public SyncWithDropbox(DropboxNotesActivity activity, DropboxAPI<?> api) {
 //    	mContext = context;
     	mApi = api;
     	mActivity = activity;
-    	
-    	mDialog = new ProgressDialog(activity);
-        mDialog.setMessage("Synchronizing notes");
-        mDialog.setButton(AlertDialog.BUTTON_NEGATIVE, "Cancel", new OnClickListener() {
-            public void onClick(DialogInterface dialog, int which) {
-                mCanceled = true;
-                mErrorMsg = "Canceled";
-
-                // This will cancel the getThumbnail operation by closing
-                // its stream
-//                if (mFos != null) {
-//                    try {
-//                        mFos.close();
-//                    } catch (IOException e) {
-//                    }
-//                }
+    	mCache = RemoteContentCache.getInstance(activity);
+    }
+
+    /**
+     * Stops the sync. A transfer in flight is aborted, which makes it fail with
+     * a {@link DropboxPartialFileException}; otherwise the sync stops before
+     * its next request. Notes stay editable while the sync runs, so there is
+     * no dialog to cancel from.
+     */
+    public void cancelSync() {
+        mErrorMsg = "Canceled";
+        mCanceled = true;
+        final UploadRequest upload = mCurrentUpload;
+        final DropboxInputStream download = mCurrentDownload;
+        if (upload == null && download == null) {
+            return;
+        }
+        // aborting shuts down the connection, which is not done on the UI thread
+        new Thread("SyncCancel") {
+            @Override
+            public void run() {
+                if (upload != null) {
+                    upload.abort();
+                }
+                if (download != null) {
+                    try {
+                        download.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Stream close error", e);
+                    }
+                }
             }
-        });
+        }.start();
+    }
 
-        mDialog.show();
+    /**
+     * Throws if the sync was canceled, so it stops before its next request.
+     */
+    private void checkCanceled() throws DropboxPartialFileException {
+        if (mCanceled) {
+            throw new DropboxPartialFileException(0);
+        }
+    }
 
+    @Override
+    protected void onPreExecute() {
+        mActivity.onSyncStarted();
     }
     
     protected void processDirectory(String path, HashMap<String, Entry> remoteFiles) throws DropboxException {
+    	checkCanceled();
     	Entry dir = mApi.metadata(path, 0, null, true, null);
     	for (Entry file : dir.contents) {
     		if (file.isDeleted) {
@@ -106,9 +151,22 @@ public class SyncWithDropbox extends AsyncTask<Void, Integer, Boolean> {
     
 	@Override
 	protected Boolean doInBackground(Void... params) {
+		// the list is refreshed about once a second instead of once per note
+		mActivity.getContentResolver().call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_BEGIN_BATCH, null, null);
+		try {
+			return sync();
+		} finally {
+			mActivity.getContentResolver().call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_END_BATCH, null, null);
+		}
+	}
+
+	private boolean sync() {
 		// get details for all notes on Dropbox
 		HashMap<String, Entry> remoteFiles = new HashMap<String, Entry>();
 		ArrayList<Uri> pendingDelete = new ArrayList<Uri>();
+		// measure how long queries wait while this sync writes
+		mActivity.getContentResolver().call(NotePad.Notes.CONTENT_URI,
+				NotePad.METHOD_READER_STATS, NotePad.ARG_RESET, null);
 		
 		try {
 			processDirectory("/", remoteFiles);
@@ -126,6 +184,9 @@ public class SyncWithDropbox extends AsyncTask<Void, Integer, Boolean> {
             Log.e(TAG, mErrorMsg, e);
             mErrorMsg = "Dropbox error.  Try again.";
             return false;
+        } catch (DropboxPartialFileException e) {
+            // canceled, mErrorMsg is already set
+            return false;
         } catch (DropboxException e) {
             // Unknown error
             Log.e(TAG, mErrorMsg, e);
@@ -133,96 +194,48 @@ public class SyncWithDropbox extends AsyncTask<Void, Integer, Boolean> {
             return false;
 		}
 		
-		// update Dropbox based on local notes
-		Cursor listCursor = mActivity.getContentResolver().query(
-				mActivity.getIntent().getData(), NOTE_DETAILS_PROJECTION, null, null, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " ASC");
+		// update Dropbox based on local notes. Only the ids are read up front,
+		// in one short query; each note is read when its turn comes, so no
+		// cursor over the note bodies stays open while the sync writes.
+		long[] noteIds = queryNoteIds();
 		
-		if (listCursor == null) {
+		if (noteIds == null) {
 			mErrorMsg = "Could not get cursor";
 			return false;
 		}
 		boolean status = true;
-		int count = listCursor.getCount();
+		int count = noteIds.length;
 		int pos = 0;
-		int idIndex = listCursor.getColumnIndex(NotePad.Notes._ID);
-		int titleIndex = listCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-		int modDateIndex = listCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
-		int noteIndex = listCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-		int deletedIndex = listCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_DELETED);
-		int fileNameIndex = listCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_FILE_NAME);
-		int folderIndex = listCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_FOLDER);
 		
 //		int count = mListAdapter.getCount();
-		while (listCursor.moveToNext()) {
+		for (long noteId : noteIds) {
 			if (mCanceled) {
 				status = false;
 				break;
 			}
-			long noteId = listCursor.getLong(idIndex);
-			String title = listCursor.getString(titleIndex);
-			String fileName = listCursor.getString(fileNameIndex);
-			String folder = listCursor.getString(folderIndex);
-			String noteContent = listCursor.getString(noteIndex);
-			long noteModTime = listCursor.getLong(modDateIndex);
-			int noteDeleted = listCursor.getInt(deletedIndex);
-
-			String filePath = null;
-			if (fileName != null) {
-				if (fileName.trim().isEmpty()) {
-					fileName = null;
-				} else {
-					filePath = buildFilePath(fileName, folder);
-					localNotes.add(filePath);
-				}
+			LocalNote note = queryLocalNote(ContentUris.withAppendedId(mActivity.getIntent().getData(), noteId));
+			if (note == null) {
+				// removed since the ids were read
+				pos++;
+				continue;
 			}
-			//String title = mListAdapter.getItem(i).toString();
-			Uri uri = ContentUris.withAppendedId(mActivity.getIntent().getData(), noteId);
-			long dropboxNoteModTime;
 			try {
 				if (DropboxNotesActivity.IS_DEBUGGING) {
 					continue;
 				}
-				if (noteDeleted == 1) {
-					if (fileName != null) {
-						deleteDropboxNote(uri, filePath);
+				// a note the user changed while it was being synchronized is
+				// read again and planned from its new state
+				int attempts = 1;
+				while (!syncLocalNote(note, remoteFiles, pendingDelete)) {
+					LocalNote current = queryLocalNote(note.uri);
+					if (current == null || attempts++ >= MAX_SYNC_ATTEMPTS) {
+						Log.w(TAG, "Note " + note.uri + " keeps changing, leaving it for the next sync");
+						break;
 					}
-					pendingDelete.add(uri);
-					//mActivity.getContentResolver().delete(uri, null, null);
-					continue;
+					Log.d(TAG, "Note " + note.uri + " changed during sync, planning it again");
+					note = current;
 				}
-				if (fileName != null) {
-					Entry file = remoteFiles.get(filePath);
-					if (file != null) {
-						dropboxNoteModTime = getFileModDate(file);
-						if (dropboxNoteModTime > noteModTime) {
-							updateLocalNote(uri, file, dropboxNoteModTime);
-						} else if (dropboxNoteModTime < noteModTime) {
-							insertDropboxNote(uri, file.path, title, noteContent);
-						} else {
-							// note unchanged, process next note
-							continue;
-						}
-					} else {
-						ContentValues noteValues = new ContentValues();
-						noteValues.put(DeletedNotesArrayAdapter.ID_KEY, noteId);
-						noteValues.put(DeletedNotesArrayAdapter.TITLE_KEY, title);
-						noteValues.put(DeletedNotesArrayAdapter.FOLDER_KEY, folder);
-						noteValues.put(DeletedNotesArrayAdapter.FILE_NAME_KEY, fileName);
-						deletedInCloud.add(noteValues);
-					}
-				} else {
-					insertDropboxNote(uri, noteId, title, noteContent, remoteFiles, folder);
-				}
-//				dropboxNoteModTime = getFileModDate(noteId);
-//				if (dropboxNoteModTime > noteModTime) {
-//					updateLocalNote(uri, noteId, dropboxNoteModTime);
-//				} else if (dropboxNoteModTime < noteModTime) {
-//					insertDropboxNote(uri, noteId, title, noteContent);
-//				} else {
-//					// note unchanged, process next note
-//					continue;
-//				}
-	        } catch (DropboxUnlinkedException e) {
+			} catch (DropboxUnlinkedException e) {
 	            // The AuthSession wasn't properly authenticated or user unlinked.
 	            Log.e(TAG, mErrorMsg, e);
 	        	mErrorMsg = "Please link with dropbox.";
@@ -232,10 +245,10 @@ public class SyncWithDropbox extends AsyncTask<Void, Integer, Boolean> {
 	            Log.e(TAG, mErrorMsg, ex);
 				if (ex.error == DropboxServerException._404_NOT_FOUND) {
 					try {
-						if (noteDeleted == 0) {
-							insertDropboxNote(uri, noteId, title, noteContent, remoteFiles, folder);
+						if (note.deleted == 0) {
+							insertDropboxNote(note.versionedUri(), note.id, note.title, note.content, remoteFiles, note.folder);
 						} else {
-							mActivity.getContentResolver().delete(uri, null, null);
+							mActivity.getContentResolver().delete(note.uri, null, null);
 						}
 					} catch (DropboxUnlinkedException e) {
 			            Log.e(TAG, mErrorMsg, e);
@@ -254,6 +267,9 @@ public class SyncWithDropbox extends AsyncTask<Void, Integer, Boolean> {
 			            mErrorMsg = "Dropbox error.  Try again.";
 			            status = false;
 			            break;
+			        } catch (DropboxPartialFileException e) {
+			            status = false;
+			            break;
 			        } catch (DropboxException e) {
 			            // Unknown error
 			            Log.e(TAG, mErrorMsg, e);
@@ -281,6 +297,10 @@ public class SyncWithDropbox extends AsyncTask<Void, Integer, Boolean> {
 	            mErrorMsg = "Dropbox error.  Try again.";
 	            status = false;
 	            break;
+	        } catch (DropboxPartialFileException e) {
+	            // canceled, mErrorMsg is already set
+	            status = false;
+	            break;
 	        } catch (DropboxException e) {
 	            // Unknown error
 	            Log.e(TAG, mErrorMsg, e);
@@ -291,7 +311,6 @@ public class SyncWithDropbox extends AsyncTask<Void, Integer, Boolean> {
 			pos++;
 			publishProgress(Integer.valueOf((int)(100.0*(double)pos/count + 0.5)));
 		}
-		listCursor.close();
 		
 		for(Uri uri : pendingDelete) {
 			mActivity.getContentResolver().delete(uri, null, null);
@@ -304,6 +323,7 @@ public class SyncWithDropbox extends AsyncTask<Void, Integer, Boolean> {
 		// download extra notes from Dropbox
 		try {
 			for (Entry file : remoteFiles.values()) {
+				checkCanceled();
 				if (file.isDeleted) {
 					continue;
 				}
@@ -327,6 +347,9 @@ public class SyncWithDropbox extends AsyncTask<Void, Integer, Boolean> {
             Log.e(TAG, mErrorMsg, e);
             mErrorMsg = "Dropbox error.  Try again.";
             return false;
+        } catch (DropboxPartialFileException e) {
+            // canceled, mErrorMsg is already set
+            return false;
         } catch (DropboxException e) {
             // Unknown error
             Log.e(TAG, mErrorMsg, e);
@@ -334,6 +357,17 @@ public class SyncWithDropbox extends AsyncTask<Void, Integer, Boolean> {
             return false;
 		}
 
+		Log.d(TAG, mCache.toString());
+		Log.d(TAG, DropboxSession.getConnectionStats());
+		DropboxSession.closeIdleConnections();
+		// the writes are over, fold the write-ahead log back while idle
+		mActivity.getContentResolver().call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_CHECKPOINT, null, null);
+		Bundle readerStats = mActivity.getContentResolver().call(NotePad.Notes.CONTENT_URI,
+				NotePad.METHOD_READER_STATS, NotePad.ARG_RESET, null);
+		Log.d(TAG, "Queries during sync: " + readerStats.getInt(NotePad.KEY_READER_QUERIES)
+				+ ", waited " + readerStats.getLong(NotePad.KEY_READER_WAIT_TOTAL_MILLIS)
+				+ " ms in total, " + readerStats.getLong(NotePad.KEY_READER_WAIT_MAX_MILLIS)
+				+ " ms at most");
 		return true;
 	}
 
@@ -342,14 +376,183 @@ public class SyncWithDropbox extends AsyncTask<Void, Integer, Boolean> {
 		mApi.delete(filePath);
 	}
 
+	/**
+	 * Synchronizes one local note with Dropbox.
+	 *
+	 * @return false if the note was changed by the user while it was being
+	 *         synchronized, in which case nothing was stored for it and it has
+	 *         to be planned again
+	 */
+	private boolean syncLocalNote(LocalNote note, HashMap<String, Entry> remoteFiles,
+			ArrayList<Uri> pendingDelete) throws DropboxException {
+		String fileName = note.fileName;
+		String filePath = null;
+		if (fileName != null) {
+			if (fileName.trim().isEmpty()) {
+				fileName = null;
+			} else {
+				filePath = buildFilePath(fileName, note.folder);
+				localNotes.add(filePath);
+			}
+		}
+		if (note.deleted == 1) {
+			if (fileName != null) {
+				deleteDropboxNote(note.uri, filePath);
+			}
+			pendingDelete.add(note.uri);
+			//mActivity.getContentResolver().delete(uri, null, null);
+			return true;
+		}
+		if (fileName == null) {
+			return insertDropboxNote(note.versionedUri(), note.id, note.title, note.content,
+					remoteFiles, note.folder);
+		}
+		Entry file = remoteFiles.get(filePath);
+		if (file == null) {
+			ContentValues noteValues = new ContentValues();
+			noteValues.put(DeletedNotesArrayAdapter.ID_KEY, note.id);
+			noteValues.put(DeletedNotesArrayAdapter.TITLE_KEY, note.title);
+			noteValues.put(DeletedNotesArrayAdapter.FOLDER_KEY, note.folder);
+			noteValues.put(DeletedNotesArrayAdapter.FILE_NAME_KEY, fileName);
+			deletedInCloud.add(noteValues);
+			return true;
+		}
+		return syncNote(note, file, remoteFiles);
+	}
+
+	/**
+	 * Brings a note that exists both locally and on Dropbox up to date. The
+	 * local side changed if the note no longer matches the base recorded at the
+	 * last sync, the remote side changed if the file revision is not the
+	 * recorded one. Notes last synced before revisions were recorded fall back
+	 * to comparing modification times. When both sides changed, the edits are
+	 * merged.
+	 *
+	 * @return false if the note was changed by the user in the meantime
+	 */
+	private boolean syncNote(LocalNote note, Entry file, HashMap<String, Entry> remoteFiles)
+			throws DropboxException {
+		long dropboxNoteModTime = getFileModDate(file);
+		String localContent = buildDropboxContent(note.title, note.content);
+		boolean remoteChanged;
+		boolean localChanged;
+		if (note.rev == null || note.base == null) {
+			remoteChanged = dropboxNoteModTime > note.modTime;
+			localChanged = dropboxNoteModTime < note.modTime;
+		} else {
+			remoteChanged = !note.rev.equals(file.rev);
+			localChanged = !localContent.equals(note.base);
+		}
+
+		if (remoteChanged && localChanged && note.base != null) {
+			return mergeNote(note, file, remoteFiles);
+		} else if (remoteChanged) {
+			return updateLocalNote(note.versionedUri(), file, dropboxNoteModTime);
+		} else if (localChanged) {
+			return insertDropboxNote(note.versionedUri(), file.path, note.title, note.content, remoteFiles);
+		} else if (note.rev == null) {
+			// note unchanged, start tracking its revision
+			ContentValues values = new ContentValues();
+			values.put(NotePad.Notes.COLUMN_NAME_REV, file.rev);
+			values.put(NotePad.Notes.COLUMN_NAME_BASE, localContent);
+			return mActivity.getContentResolver().update(note.versionedUri(), values, null, null) > 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Merges local and remote edits of a note against the content of the last
+	 * sync. A clean merge is uploaded once and stored locally. On a conflict the
+	 * note takes the remote version and the local edits are saved as a
+	 * conflicted copy, which is uploaded as a new note.
+	 *
+	 * @return false if the note was changed by the user in the meantime
+	 */
+	private boolean mergeNote(LocalNote note, Entry file, HashMap<String, Entry> remoteFiles)
+			throws DropboxException {
+		String[] remote = readRemoteNote(file);
+		if (remote == null) {
+			return true;
+		}
+		String localContent = buildDropboxContent(note.title, note.content);
+		String remoteContent = buildDropboxContent(remote[0], remote[1]);
+		ThreeWayMerge.Result result = ThreeWayMerge.merge(note.base, localContent, remoteContent);
+		if (!result.isConflict()) {
+			String merged = result.getText();
+			Log.d(TAG, "Merged " + file.path);
+			if (merged.equals(remoteContent)) {
+				return storeLocalNote(note.versionedUri(), file, getFileModDate(file), remote[0], remote[1]);
+			}
+			// upload against the merged revision, so a concurrent remote
+			// edit is not overwritten
+			byte[] contentBytes = merged.getBytes();
+			Entry entry = upload(mApi.putFileRequest(file.path, new ByteArrayInputStream(contentBytes),
+					contentBytes.length, file.rev, null));
+			mCache.put(entry.path, entry.rev, contentBytes);
+			remoteFiles.put(entry.path, entry);
+			String[] parts = splitDropboxContent(merged);
+			// if the note changed meanwhile, nothing is recorded: planning it
+			// again merges the new edits with the uploaded revision
+			return storeLocalNote(note.versionedUri(), entry, getFileModDate(entry), parts[0], parts[1]);
+		}
+
+		Log.d(TAG, "Conflicting edits in " + file.path);
+		if (!storeLocalNote(note.versionedUri(), file, getFileModDate(file), remote[0], remote[1])) {
+			return false;
+		}
+		ContentValues values = new ContentValues();
+		values.put(NotePad.Notes.COLUMN_NAME_TITLE, mActivity.getString(R.string.conflicted_copy_title, note.title));
+		values.put(NotePad.Notes.COLUMN_NAME_NOTE, note.content);
+		values.put(NotePad.Notes.COLUMN_NAME_FOLDER, note.folder);
+		Uri copyUri = mActivity.getContentResolver().insert(mActivity.getIntent().getData(), values);
+		if (copyUri != null) {
+			insertDropboxNote(copyUri, ContentUris.parseId(copyUri),
+					values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE), note.content, remoteFiles, note.folder);
+		}
+		return true;
+	}
+
 	private void createLocalNote(Entry file) throws DropboxException {
 		Uri uri = mActivity.getContentResolver().insert(mActivity.getIntent().getData(), null);
 		updateLocalNote(uri, file, RESTUtility.parseDate(file.modified).getTime());
 	}
 	
-	private void updateLocalNote(Uri uri, Entry file, long dropboxNoteModTime) throws DropboxException {
-		DropboxInputStream is = mApi.getFileStream(file.path, null);
+	private boolean updateLocalNote(Uri uri, Entry file, long dropboxNoteModTime) throws DropboxException {
+		String[] remote = readRemoteNote(file);
+		if (remote == null) {
+			return true;
+		}
+		return storeLocalNote(uri, file, dropboxNoteModTime, remote[0], remote[1]);
+	}
+
+	/**
+	 * Stores the content of a remote revision in a local note.
+	 *
+	 * @return false if the URI expects a version the note no longer has
+	 */
+	private boolean storeLocalNote(Uri uri, Entry file, long dropboxNoteModTime,
+			String title, String content) {
+		ContentValues values = new ContentValues();
+		values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, dropboxNoteModTime);
+		values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+		values.put(NotePad.Notes.COLUMN_NAME_NOTE, content);
+		values.put(NotePad.Notes.COLUMN_NAME_FILE_NAME, file.fileName());
+		values.put(NotePad.Notes.COLUMN_NAME_FOLDER, file.parentPath());
+		values.put(NotePad.Notes.COLUMN_NAME_REV, file.rev);
+		values.put(NotePad.Notes.COLUMN_NAME_BASE, buildDropboxContent(title, content));
+		return mActivity.getContentResolver().update(uri, values, null, null) > 0;
+	}
+
+	/**
+	 * Reads a remote note file.
+	 *
+	 * @return the title and the content of the note, or null if the download
+	 *         failed
+	 */
+	private String[] readRemoteNote(Entry file) throws DropboxException {
+		InputStream is = openRemoteContent(file);
 		BufferedReader br = new BufferedReader(new InputStreamReader(is));
+		String[] note = null;
 		String title = "";
 		StringBuffer content = new StringBuffer();
 		char [] buffer = new char[1024];
@@ -359,13 +562,7 @@ public class SyncWithDropbox extends AsyncTask<Void, Integer, Boolean> {
 			while ((readChars = br.read(buffer, 0, 1024)) != -1) {
 				content.append(buffer, 0, readChars);
 			}
-			ContentValues values = new ContentValues();
-			values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, dropboxNoteModTime);
-			values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
-			values.put(NotePad.Notes.COLUMN_NAME_NOTE, content.toString());
-			values.put(NotePad.Notes.COLUMN_NAME_FILE_NAME, file.fileName());
-			values.put(NotePad.Notes.COLUMN_NAME_FOLDER, file.parentPath());
-			mActivity.getContentResolver().update(uri, values, null, null);
+			note = new String[] { title != null ? title : "", content.toString() };
 		} catch (IOException e) {
 			Log.e(TAG, "Download error", e);
 		}
@@ -374,16 +571,114 @@ public class SyncWithDropbox extends AsyncTask<Void, Integer, Boolean> {
 		} catch (IOException e) {
 			Log.e(TAG, "Stream close error", e);
 		}
+		return note;
+	}
+
+	/**
+	 * Builds the content of a note file: the title line followed by the note.
+	 */
+	private static String buildDropboxContent(String title, String noteContent) {
+		return title + "\n" + noteContent;
+	}
+
+	private static String[] splitDropboxContent(String dropboxContent) {
+		int newLine = dropboxContent.indexOf('\n');
+		if (newLine == -1) {
+			return new String[] { dropboxContent, "" };
+		}
+		return new String[] { dropboxContent.substring(0, newLine), dropboxContent.substring(newLine + 1) };
+	}
+
+	/**
+	 * Opens the content of a remote file revision. The revision is served from
+	 * the content cache when possible, otherwise it is downloaded into the cache
+	 * first.
+	 */
+	private InputStream openRemoteContent(Entry file) throws DropboxException {
+		InputStream is = mCache.get(file.path, file.rev);
+		if (is != null) {
+			return is;
+		}
+		DropboxInputStream dis = startDownload(file);
+		try {
+			is = mCache.put(file.path, file.rev, dis);
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot cache " + file.path, e);
+		} finally {
+			endDownload(dis);
+		}
+		if (is == null) {
+			// the cache could not store it, read the file directly
+			dis = startDownload(file);
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			try {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = dis.read(buffer)) != -1) {
+					content.write(buffer, 0, read);
+				}
+			} catch (IOException e) {
+				throw new DropboxIOException(e);
+			} finally {
+				endDownload(dis);
+			}
+			is = new ByteArrayInputStream(content.toByteArray());
+		}
+		return is;
+	}
+
+	/**
+	 * Opens the download of the revision of a file that was listed, so the
+	 * content matches the revision it is cached under even if the file
+	 * changed since the listing, and makes it the transfer aborted by
+	 * {@link #cancelSync()}.
+	 */
+	private DropboxInputStream startDownload(Entry file) throws DropboxException {
+		checkCanceled();
+		DropboxInputStream dis = mApi.getFileStream(file.path, file.rev);
+		mCurrentDownload = dis;
+		if (mCanceled) {
+			// canceled before the stream was published
+			endDownload(dis);
+			checkCanceled();
+		}
+		return dis;
+	}
+
+	private void endDownload(DropboxInputStream dis) throws DropboxPartialFileException {
+		mCurrentDownload = null;
+		try {
+			dis.close();
+		} catch (IOException e) {
+			Log.e(TAG, "Stream close error", e);
+		}
+		// reading an aborted stream fails, report it as the cancellation
+		checkCanceled();
+	}
+
+	/**
+	 * Runs an upload as the transfer aborted by {@link #cancelSync()}. An
+	 * aborted upload throws a {@link DropboxPartialFileException}.
+	 */
+	private Entry upload(UploadRequest request) throws DropboxException {
+		mCurrentUpload = request;
+		try {
+			// an abort that came before the request was published
+			checkCanceled();
+			return request.upload();
+		} finally {
+			mCurrentUpload = null;
+		}
 	}
 
 	private String getFileNameForNoteId(long noteId) {
 		return "Note" + noteId + ".txt";
 	}
 	
-	private void insertDropboxNote(Uri noteUri, long noteId, String title,
+	private boolean insertDropboxNote(Uri noteUri, long noteId, String title,
 			String noteContent, HashMap<String, Entry> remoteFiles, String folder) throws DropboxException {
 		if (DropboxNotesActivity.IS_DEBUGGING) {
-			return;
+			return true;
 		}
 		if (!folder.startsWith("/")) {
 			folder = "/" + folder;
@@ -396,25 +691,123 @@ public class SyncWithDropbox extends AsyncTask<Void, Integer, Boolean> {
         	fileName = folder + getFileNameForNoteId(noteId);
         	noteId++;
         } while (remoteFiles.containsKey(fileName));
-        insertDropboxNote(noteUri, fileName, title, noteContent);
+        return insertDropboxNote(noteUri, fileName, title, noteContent, remoteFiles);
 	}
 	
-	private void insertDropboxNote(Uri noteUri, String path, String title, String noteContent) throws DropboxException {
-		String dropboxContent = title + "\n" + noteContent;
-        ByteArrayInputStream bais = new ByteArrayInputStream(dropboxContent.getBytes());
-       	Entry entry = mApi.putFileOverwrite(path, bais, dropboxContent.getBytes().length, null);
-       	updateNoteModificationTimeAndFilePath(noteUri, entry);
+	private boolean insertDropboxNote(Uri noteUri, String path, String title, String noteContent,
+			HashMap<String, Entry> remoteFiles) throws DropboxException {
+		String dropboxContent = buildDropboxContent(title, noteContent);
+		byte[] contentBytes = dropboxContent.getBytes();
+		Entry remote = remoteFiles.get(path);
+		if (remote != null && isCachedContent(remote, contentBytes)) {
+			// the file already has this content, such as a note synced before
+			// revisions were recorded
+			Log.d(TAG, "Content already uploaded to " + path);
+			return updateNoteModificationTimeAndFilePath(noteUri, remote, dropboxContent);
+		}
+        ByteArrayInputStream bais = new ByteArrayInputStream(contentBytes);
+       	Entry entry = upload(mApi.putFileOverwriteRequest(path, bais, contentBytes.length, null));
+       	mCache.put(entry.path, entry.rev, contentBytes);
+       	remoteFiles.put(entry.path, entry);
+       	return updateNoteModificationTimeAndFilePath(noteUri, entry, dropboxContent);
 	}
 
-	private void updateNoteModificationTimeAndFilePath(Uri noteUri, Entry entry) throws DropboxException {//long time, String fileName) {
+	/**
+	 * Tells whether the cached content of a remote revision is the given
+	 * content. Nothing is downloaded, a revision that is not cached is taken
+	 * to differ.
+	 */
+	private boolean isCachedContent(Entry file, byte[] content) {
+		if (file.bytes != content.length) {
+			return false;
+		}
+		InputStream is = mCache.get(file.path, file.rev);
+		if (is == null) {
+			return false;
+		}
+		try {
+			ByteArrayOutputStream cached = new ByteArrayOutputStream(content.length);
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				cached.write(buffer, 0, read);
+			}
+			return Arrays.equals(cached.toByteArray(), content);
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot read the cached " + file.path, e);
+			return false;
+		} finally {
+			try {
+				is.close();
+			} catch (IOException e) {
+				Log.e(TAG, "Stream close error", e);
+			}
+		}
+	}
+
+	/**
+	 * Records an uploaded revision in the note.
+	 *
+	 * @return false if the URI expects a version the note no longer has. The
+	 *         file and revision are recorded anyway, so the note is not uploaded
+	 *         to a new file when it is planned again.
+	 */
+	private boolean updateNoteModificationTimeAndFilePath(Uri noteUri, Entry entry, String dropboxContent) throws DropboxException {//long time, String fileName) {
 		long time = RESTUtility.parseDate(entry.modified).getTime();
 		String fileName = entry.fileName();
 		String folder = entry.parentPath();
 		ContentValues values = new ContentValues();
-		values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, time);
 		values.put(NotePad.Notes.COLUMN_NAME_FILE_NAME, fileName);
 		values.put(NotePad.Notes.COLUMN_NAME_FOLDER, folder);
-		mActivity.getContentResolver().update(noteUri, values, null, null);
+		values.put(NotePad.Notes.COLUMN_NAME_REV, entry.rev);
+		values.put(NotePad.Notes.COLUMN_NAME_BASE, dropboxContent);
+		values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, time);
+		if (mActivity.getContentResolver().update(noteUri, values, null, null) > 0) {
+			return true;
+		}
+		// keep the newer modification time of the user's edit
+		values.remove(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+		Uri uri = noteUri.buildUpon().clearQuery().build();
+		mActivity.getContentResolver().update(uri, values, null, null);
+		return false;
+	}
+
+	/**
+	 * Reads the ids of all local notes, oldest modification first.
+	 *
+	 * @return the ids, or null if the notes cannot be queried
+	 */
+	private long[] queryNoteIds() {
+		Cursor cursor = mActivity.getContentResolver().query(mActivity.getIntent().getData(),
+				NOTE_IDS_PROJECTION, null, null, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " ASC");
+		if (cursor == null) {
+			return null;
+		}
+		long[] ids = new long[cursor.getCount()];
+		int i = 0;
+		while (cursor.moveToNext() && i < ids.length) {
+			ids[i++] = cursor.getLong(0);
+		}
+		cursor.close();
+		return ids;
+	}
+
+	/**
+	 * Reads the current state of a local note.
+	 *
+	 * @return the note, or null if it no longer exists
+	 */
+	private LocalNote queryLocalNote(Uri uri) {
+		Cursor cursor = mActivity.getContentResolver().query(uri, NOTE_DETAILS_PROJECTION, null, null, null);
+		if (cursor == null) {
+			return null;
+		}
+		LocalNote note = null;
+		if (cursor.moveToFirst()) {
+			note = new LocalNote(mActivity.getIntent().getData(), cursor);
+		}
+		cursor.close();
+		return note;
 	}
 
 //	private long getFileModDate(long noteId) throws DropboxException {
@@ -431,12 +824,12 @@ public class SyncWithDropbox extends AsyncTask<Void, Integer, Boolean> {
 	@Override
     protected void onProgressUpdate(Integer... progress) {
         int percent = progress[0];
-        mDialog.setProgress(percent);
+        mActivity.onSyncProgress(percent);
     }
 
     @Override
     protected void onPostExecute(Boolean result) {
-        mDialog.dismiss();
+        mActivity.onSyncFinished();
         if (result) {
         	// process notes that were deleted in the cloud: ask for confirmation to delete them locally
         	mActivity.showCloudDeletedConfirmation(deletedInCloud);
@@ -452,4 +845,42 @@ public class SyncWithDropbox extends AsyncTask<Void, Integer, Boolean> {
     }
 
 
+	/**
+	 * The state of a local note as read for planning its sync
+	 */
+	private static class LocalNote {
+		final Uri uri;
+		final long id;
+		final String title;
+		final String content;
+		final long modTime;
+		final int deleted;
+		final String fileName;
+		final String folder;
+		final String rev;
+		final String base;
+		final long version;
+
+		LocalNote(Uri notesUri, Cursor c) {
+			id = c.getLong(c.getColumnIndexOrThrow(NotePad.Notes._ID));
+			uri = ContentUris.withAppendedId(notesUri, id);
+			title = c.getString(c.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_TITLE));
+			content = c.getString(c.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_NOTE));
+			modTime = c.getLong(c.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE));
+			deleted = c.getInt(c.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_DELETED));
+			fileName = c.getString(c.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_FILE_NAME));
+			folder = c.getString(c.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_FOLDER));
+			rev = c.getString(c.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_REV));
+			base = c.getString(c.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_BASE));
+			version = c.getLong(c.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_VERSION));
+		}
+
+		/**
+		 * Returns the URI that only updates the note while it still is in the
+		 * state that was read
+		 */
+		Uri versionedUri() {
+			return NotePad.Notes.withExpectedVersion(uri, version);
+		}
+	}
 }
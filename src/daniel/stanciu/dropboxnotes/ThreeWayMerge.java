@@ -0,0 +1,133 @@
+package daniel.stanciu.dropboxnotes;
+
+/**
+ * Line based three-way merge of two texts that were both changed from a common
+ * base.
+ *
+ * Both texts are diffed against the base with {@link LineDiff}. Base lines
+ * kept unchanged by both sides split the texts into chunks; a chunk changed by
+ * only one side takes that side's lines, a chunk changed identically by both
+ * sides is taken once, and a chunk changed differently by both sides is a
+ * conflict.
+ */
+public final class ThreeWayMerge {
+
+	// This class cannot be instantiated
+	private ThreeWayMerge() {
+	}
+
+	/**
+	 * The outcome of a merge
+	 */
+	public static final class Result {
+		private final String mText;
+
+		private Result(String text) {
+			mText = text;
+		}
+
+		/**
+		 * Returns true if both sides changed the same lines differently. There
+		 * is no merged text in that case.
+		 */
+		public boolean isConflict() {
+			return mText == null;
+		}
+
+		/**
+		 * Returns the merged text, or null if there was a conflict.
+		 */
+		public String getText() {
+			return mText;
+		}
+	}
+
+	/**
+	 * Merges the changes made to base in local and in remote.
+	 */
+	public static Result merge(String base, String local, String remote) {
+		if (local.equals(remote) || remote.equals(base)) {
+			return new Result(local);
+		}
+		if (local.equals(base)) {
+			return new Result(remote);
+		}
+
+		LineDiff.LineTable table = new LineDiff.LineTable();
+		int[] baseLines = table.split(base);
+		int[] localLines = table.split(local);
+		int[] remoteLines = table.split(remote);
+		int[] localMatches = LineDiff.match(baseLines, localLines);
+		int[] remoteMatches = LineDiff.match(baseLines, remoteLines);
+
+		StringBuilder merged = new StringBuilder(Math.max(local.length(), remote.length()));
+		int b = 0;
+		int l = 0;
+		int r = 0;
+		for (int i = 0; i <= baseLines.length; i++) {
+			int j;
+			int k;
+			if (i == baseLines.length) {
+				// the end of all three texts closes the last chunk
+				j = localLines.length;
+				k = remoteLines.length;
+			} else {
+				j = localMatches[i];
+				k = remoteMatches[i];
+				if (j < 0 || k < 0) {
+					continue;
+				}
+			}
+			if (!mergeChunk(table, baseLines, b, i, localLines, l, j, remoteLines, r, k, merged)) {
+				return new Result(null);
+			}
+			if (i < baseLines.length) {
+				merged.append(table.getLine(baseLines[i]));
+			}
+			b = i + 1;
+			l = j + 1;
+			r = k + 1;
+		}
+		return new Result(merged.toString());
+	}
+
+	/**
+	 * Merges the chunk that lies between two lines kept by both sides.
+	 *
+	 * @return false if the chunk is a conflict
+	 */
+	private static boolean mergeChunk(LineDiff.LineTable table, int[] base, int bStart, int bEnd,
+			int[] local, int lStart, int lEnd, int[] remote, int rStart, int rEnd,
+			StringBuilder merged) {
+		if (bStart == bEnd && lStart == lEnd && rStart == rEnd) {
+			return true;
+		}
+		if (rangeEquals(local, lStart, lEnd, base, bStart, bEnd)) {
+			append(table, remote, rStart, rEnd, merged);
+		} else if (rangeEquals(remote, rStart, rEnd, base, bStart, bEnd)
+				|| rangeEquals(local, lStart, lEnd, remote, rStart, rEnd)) {
+			append(table, local, lStart, lEnd, merged);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	private static boolean rangeEquals(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd) {
+		if (aEnd - aStart != bEnd - bStart) {
+			return false;
+		}
+		for (int i = aStart, j = bStart; i < aEnd; i++, j++) {
+			if (a[i] != b[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void append(LineDiff.LineTable table, int[] lines, int start, int end, StringBuilder merged) {
+		for (int i = start; i < end; i++) {
+			merged.append(table.getLine(lines[i]));
+		}
+	}
+}